@@ -0,0 +1,43 @@
+package vandy.mooc.jsonweather;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests that WeatherJSONParser stops reading a response once every
+ * field of interest has been parsed.  It goes through
+ * android.util.JsonReader, so it runs on a device.
+ */
+public class WeatherJSONParserTest extends AndroidTestCase {
+    private final static String FIELDS =
+        "{\"id\":4644585,\"dt\":1445281200,\"name\":\"Nashville\","
+        + "\"wind\":{\"speed\":3.1,\"deg\":200},"
+        + "\"main\":{\"temp\":291.5,\"humidity\":55},"
+        + "\"sys\":{\"sunrise\":1445255520,\"sunset\":1445296020}";
+
+    public void testStopsOnceEveryFieldIsRead() throws IOException {
+        // What follows the last field is not valid Json, so reading
+        // any of it would fail.
+        JsonWeather weather = parse(FIELDS + ",\"cod\":}");
+
+        assertEquals("Nashville", weather.getmName());
+        assertEquals(55, weather.getmHumidity());
+        assertEquals(1445296020, weather.getmSunset());
+    }
+
+    public void testReadsToEndWhenFieldIsMissing() throws IOException {
+        JsonWeather weather =
+            parse(FIELDS.replace("\"id\":4644585,", "") + ",\"cod\":200}");
+
+        assertEquals("Nashville", weather.getmName());
+        assertEquals(200, weather.getmCod());
+    }
+
+    private static JsonWeather parse(String body) throws IOException {
+        InputStream in = new ByteArrayInputStream(body.getBytes("UTF-8"));
+        return new WeatherJSONParser().parseJsonStream(in);
+    }
+}
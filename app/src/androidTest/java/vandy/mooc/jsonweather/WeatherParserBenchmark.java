@@ -0,0 +1,127 @@
+package vandy.mooc.jsonweather;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import vandy.mooc.R;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Benchmarks WeatherByteParser against BaselineWeatherJSONParser, the
+ * frozen JsonReader parser it replaced, which goes through
+ * android.util.JsonReader and so can only run on a device.  Both
+ * parse the sample response over and over; the time and bytes
+ * allocated per parse are logged, and the two results must agree.
+ */
+public class WeatherParserBenchmark extends AndroidTestCase {
+    private final static String TAG =
+        WeatherParserBenchmark.class.getCanonicalName();
+
+    /**
+     * Parses run before measuring, so both parsers are compiled and
+     * warmed up, and parses measured.
+     */
+    private final static int WARM_UP = 2000;
+    private final static int ITERATIONS = 20000;
+
+    private byte[] mSample;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        try (InputStream in =
+             getContext().getResources().openRawResource(R.raw.sample)) {
+            ByteArrayOutputStream sample = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            for (int count; (count = in.read(buffer)) != -1;)
+                sample.write(buffer, 0, count);
+            mSample = sample.toByteArray();
+        }
+    }
+
+    public void testParsersAgree() throws IOException {
+        JsonWeather expected = new BaselineWeatherJSONParser()
+            .parseJsonStream(new ByteArrayInputStream(mSample));
+        JsonWeather actual = new WeatherByteParser()
+            .parse(new ByteArrayInputStream(mSample), new JsonWeather());
+
+        assertEquals(expected.getmName(), actual.getmName());
+        assertEquals(expected.getmSpeed(), actual.getmSpeed());
+        assertEquals(expected.getmDeg(), actual.getmDeg());
+        assertEquals(expected.getmTemp(), actual.getmTemp());
+        assertEquals(expected.getmHumidity(), actual.getmHumidity());
+        assertEquals(expected.getmSunrise(), actual.getmSunrise());
+        assertEquals(expected.getmSunset(), actual.getmSunset());
+    }
+
+    public void testByteParserIsFaster() throws IOException {
+        final BaselineWeatherJSONParser jsonParser =
+            new BaselineWeatherJSONParser();
+        Run json = new Run() {
+                @Override
+                void parse(InputStream in) throws IOException {
+                    jsonParser.parseJsonStream(in);
+                }
+            };
+
+        final WeatherByteParser byteParser = new WeatherByteParser();
+        final JsonWeather target = new JsonWeather();
+        Run bytes = new Run() {
+                @Override
+                void parse(InputStream in) throws IOException {
+                    byteParser.parse(in, target);
+                }
+            };
+
+        json.measure(mSample);
+        bytes.measure(mSample);
+        Log.d(TAG, "BaselineWeatherJSONParser: " + json);
+        Log.d(TAG, "WeatherByteParser: " + bytes);
+
+        assertTrue("WeatherByteParser " + bytes
+                   + ", BaselineWeatherJSONParser " + json,
+                   bytes.mNanosPerParse < json.mNanosPerParse);
+        assertTrue("WeatherByteParser " + bytes
+                   + ", BaselineWeatherJSONParser " + json,
+                   bytes.mBytesPerParse < json.mBytesPerParse);
+    }
+
+    /**
+     * Times one parser over the sample and counts what it allocates.
+     */
+    private abstract static class Run {
+        long mNanosPerParse;
+        long mBytesPerParse;
+
+        abstract void parse(InputStream in) throws IOException;
+
+        void measure(byte[] sample) throws IOException {
+            ByteArrayInputStream in = new ByteArrayInputStream(sample);
+            for (int i = 0; i < WARM_UP; i++) {
+                in.reset();
+                parse(in);
+            }
+
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocSize();
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                in.reset();
+                parse(in);
+            }
+            mNanosPerParse = (System.nanoTime() - start) / ITERATIONS;
+            mBytesPerParse = Debug.getThreadAllocSize() / ITERATIONS;
+            Debug.stopAllocCounting();
+        }
+
+        @Override
+        public String toString() {
+            return mNanosPerParse + " ns and " + mBytesPerParse
+                + " bytes per parse";
+        }
+    }
+}
@@ -45,6 +45,12 @@ public class WeatherData implements Parcelable {
     private long mSunrise;
     private long mSunset;
 
+    /**
+     * True if this is an old value served because the Weather Service
+     * could not be reached.
+     */
+    private boolean mStale;
+
     public WeatherData() {}
 
     /**
@@ -74,6 +80,81 @@ public class WeatherData implements Parcelable {
         mSunset = sunset;
     }
 
+    public String getName() {
+        return mName;
+    }
+
+    public void setName(String name) {
+        mName = name;
+    }
+
+    public double getSpeed() {
+        return mSpeed;
+    }
+
+    public void setSpeed(double speed) {
+        mSpeed = speed;
+    }
+
+    public double getDeg() {
+        return mDeg;
+    }
+
+    public void setDeg(double deg) {
+        mDeg = deg;
+    }
+
+    public double getTemp() {
+        return mTemp;
+    }
+
+    public void setTemp(double temp) {
+        mTemp = temp;
+    }
+
+    public long getHumidity() {
+        return mHumidity;
+    }
+
+    public void setHumidity(long humidity) {
+        mHumidity = humidity;
+    }
+
+    public long getSunrise() {
+        return mSunrise;
+    }
+
+    public void setSunrise(long sunrise) {
+        mSunrise = sunrise;
+    }
+
+    public long getSunset() {
+        return mSunset;
+    }
+
+    public void setSunset(long sunset) {
+        mSunset = sunset;
+    }
+
+    public boolean isStale() {
+        return mStale;
+    }
+
+    /**
+     * Return a copy of this object flagged as stale.
+     */
+    public WeatherData asStale() {
+        WeatherData stale = new WeatherData(mName,
+                                            mSpeed,
+                                            mDeg,
+                                            mTemp,
+                                            mHumidity,
+                                            mSunrise,
+                                            mSunset);
+        stale.mStale = true;
+        return stale;
+    }
+
     /**
      * Provides a printable representation of this object.
      */
@@ -85,7 +166,8 @@ public class WeatherData implements Parcelable {
                 + ", temp=" + mTemp
                 + ", humidity=" + mHumidity
                 + ", sunrise=" + mSunrise
-                + ", sunset=" + mSunset + "]";
+                + ", sunset=" + mSunset
+                + (mStale ? ", stale" : "") + "]";
     }
 
     /*
@@ -113,6 +195,7 @@ public class WeatherData implements Parcelable {
         dest.writeLong(mHumidity);
         dest.writeLong(mSunrise);
         dest.writeLong(mSunset);
+        dest.writeInt(mStale ? 1 : 0);
     }
 
     /**
@@ -132,6 +215,7 @@ public class WeatherData implements Parcelable {
         mHumidity = in.readLong();
         mSunrise = in.readLong();
         mSunset = in.readLong();
+        mStale = in.readInt() != 0;
     }
 
     /**
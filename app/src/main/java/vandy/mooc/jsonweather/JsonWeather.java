@@ -5,7 +5,7 @@ package vandy.mooc.jsonweather;
  * interest downloaded in Json from the Weather Service.  We don't
  * care about all the data, just the fields defined in this class.
  */
-public class JsonWeather {
+public class JsonWeather implements WeatherSink {
     /**
      * Various tags corresponding to data downloaded in Json from the
      * Weather Service.
@@ -21,6 +21,10 @@ public class JsonWeather {
     final public static String sunrise_JSON = "sunrise";
     final public static String sunset_JSON = "sunset";
     final public static String cod_JSON = "cod";
+    final public static String id_JSON = "id";
+    final public static String list_JSON = "list";
+    final public static String city_JSON = "city";
+    final public static String dt_JSON = "dt";
 
     /**
      * Various fields corresponding to data downloaded in Json from
@@ -34,6 +38,14 @@ public class JsonWeather {
     private long mSunrise;
     private long mSunset;
     private int mCod;
+    private long mId;
+    private long mDt;
+
+    /**
+     * Used as a target that a parser fills in field by field.
+     */
+    public JsonWeather() {
+    }
 
     /**
      * Used for Response status code only. Used only when we get a 404 (city/resource not
@@ -118,4 +130,20 @@ public class JsonWeather {
     public void setmCod(int mCod) {
         this.mCod = mCod;
     }
+
+    public long getmId() {
+        return mId;
+    }
+
+    public void setmId(long mId) {
+        this.mId = mId;
+    }
+
+    public long getmDt() {
+        return mDt;
+    }
+
+    public void setmDt(long mDt) {
+        this.mDt = mDt;
+    }
 }
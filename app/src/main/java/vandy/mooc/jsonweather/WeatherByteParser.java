@@ -0,0 +1,806 @@
+package vandy.mooc.jsonweather;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Parses the Json weather data returned from the Weather Services API
+ * straight from its UTF-8 bytes into a reusable WeatherSink target.
+ *
+ * Unlike WeatherJSONParser it doesn't decode the stream into chars or
+ * create a String for each property name: names are matched by their
+ * length and hash (confirmed byte by byte) against the handful of
+ * fields of interest, numbers are converted to primitives as their
+ * digits go by, and everything else is skipped without being stored.
+ * The only allocation per response is the String for the city name.
+ * Parsing stops as soon as every field of interest has been read, or
+ * at a "cod" of 404, without reading the rest of the response.
+ *
+ * parseList() reads a group or forecast response instead, passing
+ * each element of its "list" array to a WeatherListSink as soon as
+ * the element ends, so memory use doesn't grow with the number of
+ * elements.
+ *
+ * The parser is push based: feed() takes whatever bytes have arrived
+ * and keeps its place between calls, so it can parse a response as
+ * it is received.  parse() is the pull based equivalent for an
+ * InputStream.  A parser may be reused for any number of responses,
+ * but only by one thread at a time.
+ */
+public class WeatherByteParser {
+    /**
+     * Size of the buffer parse() reads the stream through.
+     */
+    private final static int BUFFER_SIZE = 4096;
+
+    /**
+     * Deepest nesting of objects and arrays accepted.
+     */
+    private final static int MAX_DEPTH = 64;
+
+    /**
+     * Longest property name that can match a field; longer ones are
+     * skipped.
+     */
+    private final static int MAX_KEY_LENGTH = 16;
+
+    /**
+     * Longest number accepted, in characters.
+     */
+    private final static int MAX_NUMBER_LENGTH = 64;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * What the bytes being parsed are.
+     */
+    private final static int S_VALUE = 0;
+    private final static int S_VALUE_OR_END = 1;
+    private final static int S_KEY_OR_END = 2;
+    private final static int S_KEY_START = 3;
+    private final static int S_KEY = 4;
+    private final static int S_KEY_ESCAPE = 5;
+    private final static int S_COLON = 6;
+    private final static int S_STRING = 7;
+    private final static int S_STRING_ESCAPE = 8;
+    private final static int S_STRING_UNICODE = 9;
+    private final static int S_NUMBER = 10;
+    private final static int S_LITERAL = 11;
+    private final static int S_AFTER_MEMBER = 12;
+    private final static int S_AFTER_ELEMENT = 13;
+    private final static int S_DONE = 14;
+
+    /**
+     * Which object the parser is in, which decides the fields it
+     * looks for.
+     */
+    private final static int CTX_SKIP = 0;
+    private final static int CTX_WEATHER = 1;
+    private final static int CTX_WIND = 2;
+    private final static int CTX_MAIN = 3;
+    private final static int CTX_SYS = 4;
+    private final static int CTX_LIST_ROOT = 5;
+    private final static int CTX_LIST = 6;
+    private final static int CTX_CITY = 7;
+
+    /**
+     * The fields of interest.
+     */
+    private final static int F_NONE = 0;
+    private final static int F_COD = 1;
+    private final static int F_ID = 2;
+    private final static int F_DT = 3;
+    private final static int F_NAME = 4;
+    private final static int F_WIND = 5;
+    private final static int F_MAIN = 6;
+    private final static int F_SYS = 7;
+    private final static int F_SPEED = 8;
+    private final static int F_DEG = 9;
+    private final static int F_TEMP = 10;
+    private final static int F_HUMIDITY = 11;
+    private final static int F_SUNRISE = 12;
+    private final static int F_SUNSET = 13;
+    private final static int F_LIST = 14;
+    private final static int F_CITY = 15;
+
+    /**
+     * The fields a response must supply before the parser stops
+     * early, one bit per field.
+     */
+    private final static int REQUIRED_FIELDS =
+        1 << F_ID | 1 << F_DT | 1 << F_NAME
+        | 1 << F_SPEED | 1 << F_DEG
+        | 1 << F_TEMP | 1 << F_HUMIDITY
+        | 1 << F_SUNRISE | 1 << F_SUNSET;
+
+    /**
+     * A field name as UTF-8 bytes, with its hash.
+     */
+    private static class Key {
+        final byte[] mBytes;
+        final int mHash;
+        final int mField;
+
+        Key(String name, int field) {
+            mBytes = name.getBytes(UTF_8);
+            mField = field;
+            int hash = 0;
+            for (byte b : mBytes)
+                hash = 31 * hash + (b & 0xff);
+            mHash = hash;
+        }
+    }
+
+    /**
+     * The fields looked for in each context, indexed by context.
+     */
+    private final static Key[][] KEYS = {
+        {},
+        { new Key(JsonWeather.cod_JSON, F_COD),
+          new Key(JsonWeather.id_JSON, F_ID),
+          new Key(JsonWeather.dt_JSON, F_DT),
+          new Key(JsonWeather.name_JSON, F_NAME),
+          new Key(JsonWeather.wind_JSON, F_WIND),
+          new Key(JsonWeather.main_JSON, F_MAIN),
+          new Key(JsonWeather.sys_JSON, F_SYS) },
+        { new Key(JsonWeather.speed_JSON, F_SPEED),
+          new Key(JsonWeather.deg_JSON, F_DEG) },
+        { new Key(JsonWeather.temp_JSON, F_TEMP),
+          new Key(JsonWeather.humidity_JSON, F_HUMIDITY) },
+        { new Key(JsonWeather.sunrise_JSON, F_SUNRISE),
+          new Key(JsonWeather.sunset_JSON, F_SUNSET) },
+        { new Key(JsonWeather.cod_JSON, F_COD),
+          new Key(JsonWeather.list_JSON, F_LIST),
+          new Key(JsonWeather.city_JSON, F_CITY) },
+        {},
+        { new Key(JsonWeather.id_JSON, F_ID),
+          new Key(JsonWeather.name_JSON, F_NAME),
+          new Key(JsonWeather.sunrise_JSON, F_SUNRISE),
+          new Key(JsonWeather.sunset_JSON, F_SUNSET) },
+    };
+
+    /**
+     * Exact powers of ten, for converting numbers with few digits.
+     */
+    private final static double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Buffer parse() reads through, allocated on first use since a
+     * parser that is only fed needs none.
+     */
+    private byte[] mBuffer;
+
+    /**
+     * Object receiving the fields parsed.
+     */
+    private WeatherSink mTarget;
+
+    /**
+     * Sink of the list being parsed, or null if the response is a
+     * single weather object.
+     */
+    private WeatherListSink mList;
+
+    private int mState;
+
+    /**
+     * Bytes consumed so far, for error messages.
+     */
+    private long mPosition;
+
+    /**
+     * Open objects and arrays: whether each is an object, and its
+     * context.
+     */
+    private final boolean[] mIsObject = new boolean[MAX_DEPTH];
+    private final int[] mContexts = new int[MAX_DEPTH];
+    private int mDepth;
+
+    /**
+     * Field whose value comes next, F_NONE if it isn't of interest.
+     */
+    private int mField;
+
+    /**
+     * The fields read so far, one bit per field.
+     */
+    private int mFieldsRead;
+
+    /**
+     * True once nothing more needs to be read: every required field
+     * has been read, or the location is unknown.
+     */
+    private boolean mComplete;
+
+    /**
+     * Property name being read.
+     */
+    private final byte[] mKey = new byte[MAX_KEY_LENGTH];
+    private int mKeyLength;
+    private int mKeyHash;
+
+    /**
+     * String value being read, if it is kept.
+     */
+    private byte[] mString = new byte[64];
+    private int mStringLength;
+    private boolean mKeepString;
+    private int mUnicode;
+    private int mUnicodeDigits;
+    private int mHighSurrogate;
+
+    /**
+     * Number being read.
+     */
+    private final byte[] mNumber = new byte[MAX_NUMBER_LENGTH];
+    private int mNumberLength;
+
+    /**
+     * Literal being read, and how much of it has been matched.
+     */
+    private byte[] mLiteral;
+    private int mLiteralMatched;
+
+    private final static byte[] TRUE = { 't', 'r', 'u', 'e' };
+    private final static byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+    private final static byte[] NULL = { 'n', 'u', 'l', 'l' };
+
+    /**
+     * Parse the response read from @a inputStream into @a target.
+     *
+     * @return @a target
+     */
+    public <T extends WeatherSink> T parse(InputStream inputStream,
+                                           T target) throws IOException {
+        begin(target);
+        readAll(inputStream);
+        return target;
+    }
+
+    /**
+     * Parse the group or forecast response read from @a
+     * inputStream, passing each element of its list to @a sink as
+     * soon as it has been parsed.
+     *
+     * @return @a sink
+     */
+    public <T extends WeatherListSink> T parseList(InputStream inputStream,
+                                                   T sink) throws IOException {
+        beginList(sink);
+        readAll(inputStream);
+        return sink;
+    }
+
+    /**
+     * Feed everything read from @a inputStream until the response
+     * has been parsed.
+     */
+    private void readAll(InputStream inputStream) throws IOException {
+        if (mBuffer == null)
+            mBuffer = new byte[BUFFER_SIZE];
+        while (!isDone()) {
+            int count = inputStream.read(mBuffer);
+            if (count == -1)
+                throw new IOException("Unexpected end of Json at byte " + mPosition);
+            feed(mBuffer, 0, count);
+        }
+    }
+
+    /**
+     * Start parsing a new response into @a target.
+     */
+    public void begin(WeatherSink target) {
+        reset(target);
+        mList = null;
+    }
+
+    /**
+     * Start parsing a new group or forecast response into @a sink.
+     */
+    public void beginList(WeatherListSink sink) {
+        reset(sink);
+        mList = sink;
+    }
+
+    private void reset(WeatherSink target) {
+        mTarget = target;
+        mState = S_VALUE;
+        mPosition = 0;
+        mDepth = 0;
+        mField = F_NONE;
+        mFieldsRead = 0;
+        mComplete = false;
+    }
+
+    /**
+     * @return true once the whole response, or all of it that is
+     * needed, has been parsed.
+     */
+    public boolean isDone() {
+        return mState == S_DONE;
+    }
+
+    /**
+     * Parse the next @a length bytes of the response from @a buffer,
+     * starting at @a offset.
+     *
+     * @return the number of bytes consumed, which is less than @a
+     * length only if the response ended, or stopped being of
+     * interest, before them
+     * @throws IOException if the bytes are not valid Json
+     */
+    public int feed(byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        int i = offset;
+        while (i < end && mState != S_DONE) {
+            if (consume(buffer[i])) {
+                i++;
+                mPosition++;
+            }
+        }
+        return i - offset;
+    }
+
+    /**
+     * Process @a b.
+     *
+     * @return false if @a b ended a number and must be processed again
+     */
+    private boolean consume(byte b) throws IOException {
+        switch (mState) {
+        case S_STRING:
+            if (b == '"') {
+                endString();
+            } else if (b == '\\') {
+                mState = S_STRING_ESCAPE;
+            } else if (mKeepString) {
+                appendString(b);
+            }
+            return true;
+
+        case S_KEY:
+            if (b == '"') {
+                mField = lookUp();
+                mState = S_COLON;
+            } else if (b == '\\') {
+                // No field of interest has an escape in its name.
+                mKeyLength = MAX_KEY_LENGTH + 1;
+                mState = S_KEY_ESCAPE;
+            } else {
+                if (mKeyLength < MAX_KEY_LENGTH)
+                    mKey[mKeyLength] = b;
+                mKeyLength++;
+                mKeyHash = 31 * mKeyHash + (b & 0xff);
+            }
+            return true;
+
+        case S_KEY_ESCAPE:
+            // The digits of a \\u escape need no special treatment.
+            mState = S_KEY;
+            return true;
+
+        case S_STRING_ESCAPE:
+            unescape(b);
+            return true;
+
+        case S_STRING_UNICODE:
+            appendUnicodeDigit(b);
+            return true;
+
+        case S_NUMBER:
+            if ((b >= '0' && b <= '9')
+                || b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-') {
+                if (mNumberLength == MAX_NUMBER_LENGTH)
+                    throw error("Number too long");
+                mNumber[mNumberLength++] = b;
+                return true;
+            }
+            endNumber();
+            return false;
+
+        case S_LITERAL:
+            if (b != mLiteral[mLiteralMatched])
+                throw error("Unexpected character");
+            if (++mLiteralMatched == mLiteral.length) {
+                mField = F_NONE;
+                endValue();
+            }
+            return true;
+        }
+
+        if (b == ' ' || b == '\n' || b == '\r' || b == '\t')
+            return true;
+
+        switch (mState) {
+        case S_VALUE_OR_END:
+            if (b == ']') {
+                endContainer();
+                return true;
+            }
+            beginValue(b);
+            return true;
+
+        case S_VALUE:
+            beginValue(b);
+            return true;
+
+        case S_KEY_OR_END:
+            if (b == '}') {
+                endContainer();
+                return true;
+            }
+            beginKey(b);
+            return true;
+
+        case S_KEY_START:
+            beginKey(b);
+            return true;
+
+        case S_COLON:
+            if (b != ':')
+                throw error("Expected ':'");
+            mState = S_VALUE;
+            return true;
+
+        case S_AFTER_MEMBER:
+            if (b == ',')
+                mState = S_KEY_START;
+            else if (b == '}')
+                endContainer();
+            else
+                throw error("Expected ',' or '}'");
+            return true;
+
+        case S_AFTER_ELEMENT:
+            if (b == ',')
+                mState = S_VALUE;
+            else if (b == ']')
+                endContainer();
+            else
+                throw error("Expected ',' or ']'");
+            return true;
+
+        default:
+            throw error("Unexpected character");
+        }
+    }
+
+    private void beginValue(byte b) throws IOException {
+        if (b == '{') {
+            int context = contextOf(mField);
+            if (context == CTX_WEATHER && mDepth > 0)
+                // An element of the list.
+                mTarget = mList.beginElement();
+            push(true, context);
+            mState = S_KEY_OR_END;
+        } else if (b == '[') {
+            push(false, mField == F_LIST ? CTX_LIST : CTX_SKIP);
+            mState = S_VALUE_OR_END;
+        } else if (b == '"') {
+            mKeepString = mField == F_NAME || mField == F_COD;
+            mStringLength = 0;
+            mHighSurrogate = 0;
+            mState = S_STRING;
+        } else if (b == '-' || (b >= '0' && b <= '9')) {
+            mNumberLength = 0;
+            mNumber[mNumberLength++] = b;
+            mState = S_NUMBER;
+        } else if (b == 't' || b == 'f' || b == 'n') {
+            mLiteral = b == 't' ? TRUE : b == 'f' ? FALSE : NULL;
+            mLiteralMatched = 1;
+            mState = S_LITERAL;
+        } else {
+            throw error("Expected a value");
+        }
+    }
+
+    private void beginKey(byte b) throws IOException {
+        if (b != '"')
+            throw error("Expected a name");
+        mKeyLength = 0;
+        mKeyHash = 0;
+        mState = S_KEY;
+    }
+
+    /**
+     * @return the field named by the property name just read in the
+     * current context, or F_NONE.
+     */
+    private int lookUp() {
+        if (mKeyLength > MAX_KEY_LENGTH)
+            return F_NONE;
+        candidates:
+        for (Key key : KEYS[mContexts[mDepth - 1]]) {
+            if (key.mHash != mKeyHash || key.mBytes.length != mKeyLength)
+                continue;
+            // Two names can share a hash and length, so another key
+            // may still match.
+            for (int i = 0; i < mKeyLength; i++)
+                if (key.mBytes[i] != mKey[i])
+                    continue candidates;
+            return key.mField;
+        }
+        return F_NONE;
+    }
+
+    /**
+     * @return the context of an object that is the value of @a field.
+     */
+    private int contextOf(int field) {
+        if (mDepth == 0)
+            return mList != null ? CTX_LIST_ROOT : CTX_WEATHER;
+        if (mContexts[mDepth - 1] == CTX_LIST)
+            return CTX_WEATHER;
+        switch (field) {
+        case F_WIND:
+            return CTX_WIND;
+        case F_MAIN:
+            return CTX_MAIN;
+        case F_SYS:
+            return CTX_SYS;
+        case F_CITY:
+            return CTX_CITY;
+        default:
+            return CTX_SKIP;
+        }
+    }
+
+    private void push(boolean isObject, int context) throws IOException {
+        if (mDepth == MAX_DEPTH)
+            throw error("Nested too deeply");
+        mIsObject[mDepth] = isObject;
+        mContexts[mDepth] = context;
+        mDepth++;
+        mField = F_NONE;
+    }
+
+    private void endContainer() {
+        mDepth--;
+        if (mDepth > 0 && mContexts[mDepth] == CTX_WEATHER) {
+            // The end of an element of the list.
+            mList.endElement();
+            mTarget = mList;
+        }
+        mField = F_NONE;
+        endValue();
+    }
+
+    /**
+     * Move on after a complete value.
+     */
+    private void endValue() {
+        if (mDepth == 0 || mComplete)
+            mState = S_DONE;
+        else
+            mState = mIsObject[mDepth - 1] ? S_AFTER_MEMBER : S_AFTER_ELEMENT;
+    }
+
+    private void unescape(byte b) throws IOException {
+        mState = S_STRING;
+        if (b == 'u') {
+            mUnicode = 0;
+            mUnicodeDigits = 0;
+            mState = S_STRING_UNICODE;
+            return;
+        }
+        if (!mKeepString)
+            return;
+        switch (b) {
+        case 'b': appendString((byte) '\b'); break;
+        case 'f': appendString((byte) '\f'); break;
+        case 'n': appendString((byte) '\n'); break;
+        case 'r': appendString((byte) '\r'); break;
+        case 't': appendString((byte) '\t'); break;
+        case '"': case '\\': case '/': appendString(b); break;
+        default: throw error("Invalid escape");
+        }
+    }
+
+    private void appendUnicodeDigit(byte b) throws IOException {
+        int digit = Character.digit(b, 16);
+        if (digit < 0)
+            throw error("Invalid \\u escape");
+        mUnicode = (mUnicode << 4) | digit;
+        if (++mUnicodeDigits < 4)
+            return;
+
+        mState = S_STRING;
+        if (!mKeepString)
+            return;
+
+        int c = mUnicode;
+        if (Character.isHighSurrogate((char) c)) {
+            mHighSurrogate = c;
+            return;
+        }
+        if (Character.isLowSurrogate((char) c) && mHighSurrogate != 0)
+            c = Character.toCodePoint((char) mHighSurrogate, (char) c);
+        mHighSurrogate = 0;
+        appendCodePoint(c);
+    }
+
+    /**
+     * Append @a c to the string value as UTF-8.
+     */
+    private void appendCodePoint(int c) {
+        if (c < 0x80) {
+            appendString((byte) c);
+        } else if (c < 0x800) {
+            appendString((byte) (0xc0 | (c >> 6)));
+            appendString((byte) (0x80 | (c & 0x3f)));
+        } else if (c < 0x10000) {
+            appendString((byte) (0xe0 | (c >> 12)));
+            appendString((byte) (0x80 | ((c >> 6) & 0x3f)));
+            appendString((byte) (0x80 | (c & 0x3f)));
+        } else {
+            appendString((byte) (0xf0 | (c >> 18)));
+            appendString((byte) (0x80 | ((c >> 12) & 0x3f)));
+            appendString((byte) (0x80 | ((c >> 6) & 0x3f)));
+            appendString((byte) (0x80 | (c & 0x3f)));
+        }
+    }
+
+    private void appendString(byte b) {
+        if (mStringLength == mString.length) {
+            byte[] larger = new byte[mString.length * 2];
+            System.arraycopy(mString, 0, larger, 0, mStringLength);
+            mString = larger;
+        }
+        mString[mStringLength++] = b;
+    }
+
+    private void endString() throws IOException {
+        if (mField == F_NAME) {
+            mTarget.setmName(new String(mString, 0, mStringLength, UTF_8));
+            fieldRead();
+        } else if (mField == F_COD) {
+            // The Weather Service sends "cod" as a string in errors.
+            setCod((int) parseLong(mString, mStringLength));
+        }
+        mField = F_NONE;
+        endValue();
+    }
+
+    private void endNumber() throws IOException {
+        switch (mField) {
+        case F_COD:
+            setCod((int) toLong());
+            break;
+        case F_ID:
+            mTarget.setmId(toLong());
+            fieldRead();
+            break;
+        case F_DT:
+            mTarget.setmDt(toLong());
+            fieldRead();
+            break;
+        case F_SPEED:
+            mTarget.setmSpeed(toDouble());
+            fieldRead();
+            break;
+        case F_DEG:
+            mTarget.setmDeg(toDouble());
+            fieldRead();
+            break;
+        case F_TEMP:
+            mTarget.setmTemp(toDouble());
+            fieldRead();
+            break;
+        case F_HUMIDITY:
+            mTarget.setmHumidity(toLong());
+            fieldRead();
+            break;
+        case F_SUNRISE:
+            mTarget.setmSunrise(toLong());
+            fieldRead();
+            break;
+        case F_SUNSET:
+            mTarget.setmSunset(toLong());
+            fieldRead();
+            break;
+        }
+        mField = F_NONE;
+        endValue();
+    }
+
+    private void setCod(int cod) {
+        mTarget.setmCod(cod);
+        if (cod == 404)
+            // The location is unknown, so there is nothing else to read.
+            mComplete = true;
+    }
+
+    /**
+     * Note that the value of the current field has just been stored,
+     * and whether that completes the response.  A value of the wrong
+     * type is skipped without calling this, so it can't complete the
+     * response.
+     */
+    private void fieldRead() {
+        mFieldsRead |= 1 << mField;
+        if (mList == null
+            && (mFieldsRead & REQUIRED_FIELDS) == REQUIRED_FIELDS)
+            mComplete = true;
+    }
+
+    /**
+     * @return the number just read as a long, truncating any
+     * fraction.
+     */
+    private long toLong() throws IOException {
+        for (int i = 0; i < mNumberLength; i++)
+            if (mNumber[i] == '.' || mNumber[i] == 'e' || mNumber[i] == 'E')
+                return (long) toDouble();
+        return parseLong(mNumber, mNumberLength);
+    }
+
+    /**
+     * @return the number just read as a double.
+     */
+    private double toDouble() throws IOException {
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean negative = false;
+        boolean fraction = false;
+        int i = 0;
+
+        if (mNumber[0] == '-') {
+            negative = true;
+            i++;
+        }
+        for (; i < mNumberLength; i++) {
+            byte b = mNumber[i];
+            if (b >= '0' && b <= '9') {
+                if (mantissa != 0 || b != '0')
+                    digits++;
+                mantissa = mantissa * 10 + (b - '0');
+                if (fraction)
+                    scale++;
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+
+        // Numbers of up to 15 digits with no exponent, which is all
+        // the Weather Service sends, convert exactly without a String.
+        if (i == mNumberLength && digits <= 15 && scale < POWERS_OF_TEN.length) {
+            double value = mantissa / POWERS_OF_TEN[scale];
+            return negative ? -value : value;
+        }
+
+        try {
+            return Double.parseDouble(new String(mNumber, 0, mNumberLength, UTF_8));
+        } catch (NumberFormatException e) {
+            throw error("Invalid number");
+        }
+    }
+
+    /**
+     * Parse the decimal integer in the first @a length bytes of @a
+     * digits.
+     */
+    private long parseLong(byte[] digits, int length) throws IOException {
+        if (length == 0)
+            throw error("Invalid number");
+        boolean negative = digits[0] == '-';
+        long value = 0;
+        for (int i = negative ? 1 : 0; i < length; i++) {
+            int digit = digits[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10)
+                throw error("Invalid number");
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at byte " + mPosition);
+    }
+}
@@ -3,8 +3,6 @@ package vandy.mooc.jsonweather;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
 
 import android.util.JsonReader;
 import android.util.JsonToken;
@@ -12,8 +10,25 @@ import android.util.JsonToken;
 /**
  * Parses the Json weather data returned from the Weather Services API
  * and returns a JsonWeather object that contain this data.
+ *
+ * The services parse with WeatherByteParser; this parser is built on
+ * android.util.JsonReader.
  */
 public class WeatherJSONParser {
+    /**
+     * The members of a response that hold the fields of interest, one
+     * bit each.  Parsing a single response stops once all of them
+     * have been read.
+     */
+    private final static int ID_READ = 1;
+    private final static int DT_READ = 1 << 1;
+    private final static int NAME_READ = 1 << 2;
+    private final static int WIND_READ = 1 << 3;
+    private final static int MAIN_READ = 1 << 4;
+    private final static int SYS_READ = 1 << 5;
+    private final static int ALL_READ =
+        ID_READ | DT_READ | NAME_READ | WIND_READ | MAIN_READ | SYS_READ;
+
     /**
      * Used for logging purposes.
      */
@@ -22,19 +37,19 @@ public class WeatherJSONParser {
 
     /**
      * Parse the @param inputStream and convert it into a JsonWeather
-     * object.
+     * object.  Reading stops as soon as every field of interest has
+     * been parsed, and closing the stream leaves the rest of it to
+     * the transport.
      */
     public JsonWeather parseJsonStream(InputStream inputStream)
         throws IOException {
-
         // Create a JsonReader for the inputStream.
         try (JsonReader reader =
              new JsonReader(new InputStreamReader(inputStream,
                                                   "UTF-8"))) {
-            // Log.d(TAG, "Parsing the results returned as an array");
-
-            // Handle the array returned from the Acronym Service.
-            return parseWeatherDataService(reader);
+            JsonWeather jsonWeather = new JsonWeather();
+            parseWeatherDataService(reader, jsonWeather, true);
+            return jsonWeather;
         }
     }
 
@@ -44,123 +59,115 @@ public class WeatherJSONParser {
      */
     public JsonWeather parseWeatherDataService(JsonReader reader)
         throws IOException {
+        JsonWeather jsonWeather = new JsonWeather();
+        parseWeatherDataService(reader, jsonWeather);
+        return jsonWeather;
+    }
+
+    /**
+     * Parse a Json stream straight into @param sink.  Parsing stops
+     * at a "cod" of 404, which means the location is unknown.
+     */
+    public void parseWeatherDataService(JsonReader reader,
+                                        WeatherSink sink)
+        throws IOException {
+        parseWeatherDataService(reader, sink, false);
+    }
 
-        String name = null;
-        Wind wind = null;
-        MainPart mainPart = null;
-        Sys sys = null;
-        int cod = 0;
+    /**
+     * Parse a Json stream straight into @param sink, returning as
+     * soon as every field of interest has been parsed if @param
+     * stopEarly is true, which leaves @a reader inside the object.
+     */
+    private void parseWeatherDataService(JsonReader reader,
+                                         WeatherSink sink,
+                                         boolean stopEarly)
+        throws IOException {
+        int read = 0;
 
         reader.beginObject();
         while (reader.hasNext()) {
             String jsonPropertyName = reader.nextName();
 
             if (jsonPropertyName.equals(JsonWeather.cod_JSON)) {
-                cod = reader.nextInt();
+                int cod = reader.nextInt();
+                sink.setmCod(cod);
                 if (cod == 404) {
-                    return new JsonWeather(404);
+                    return;
                 }
+            } else if (jsonPropertyName.equals(JsonWeather.id_JSON)) {
+                sink.setmId(reader.nextLong());
+                read |= ID_READ;
+            } else if (jsonPropertyName.equals(JsonWeather.dt_JSON)) {
+                sink.setmDt(reader.nextLong());
+                read |= DT_READ;
             } else if (jsonPropertyName.equals(JsonWeather.name_JSON)) {
-                name = reader.nextString();
+                sink.setmName(reader.nextString());
+                read |= NAME_READ;
             } else if (jsonPropertyName.equals(JsonWeather.wind_JSON)) {
-                wind = parseWindMessage(reader);
+                parseWindMessage(reader, sink);
+                read |= WIND_READ;
             } else if (jsonPropertyName.equals(JsonWeather.main_JSON)) {
-                mainPart = parseMainPartMessage(reader);
+                parseMainPartMessage(reader, sink);
+                read |= MAIN_READ;
             } else if (jsonPropertyName.equals(JsonWeather.sys_JSON)) {
-                sys = parseSysMessage(reader);
+                parseSysMessage(reader, sink);
+                read |= SYS_READ;
             } else {
                 reader.skipValue();
             }
+
+            if (stopEarly && read == ALL_READ)
+                return;
         }
         reader.endObject();
-        return new JsonWeather(name, wind.mSpeed, wind.mDeg, mainPart.mTemp, mainPart.mHumidity,
-                sys.mSunrise, sys.mSunset);
     }
 
-    public Wind parseWindMessage(JsonReader reader) throws IOException {
-        double speed = 0.0;
-        double deg = 0.0;
-
+    public void parseWindMessage(JsonReader reader,
+                                 WeatherSink sink) throws IOException {
         reader.beginObject();
         while (reader.hasNext()) {
             String jsonPropertyName = reader.nextName();
             if (jsonPropertyName.equals(JsonWeather.speed_JSON)) {
-                speed = reader.nextDouble();
+                sink.setmSpeed(reader.nextDouble());
             } else if (jsonPropertyName.equals(JsonWeather.deg_JSON)) {
-                deg = reader.nextDouble();
+                sink.setmDeg(reader.nextDouble());
             } else {
                 reader.skipValue();
             }
         }
         reader.endObject();
-        return new Wind(speed, deg);
     }
 
-    public MainPart parseMainPartMessage(JsonReader reader) throws IOException {
-        double temp = 0.0;
-        long humidity = 0l;
-
+    public void parseMainPartMessage(JsonReader reader,
+                                     WeatherSink sink) throws IOException {
         reader.beginObject();
         while (reader.hasNext()) {
             String jsonPropertyName = reader.nextName();
             if (jsonPropertyName.equals(JsonWeather.temp_JSON)) {
-                temp = reader.nextDouble();
+                sink.setmTemp(reader.nextDouble());
             } else if (jsonPropertyName.equals(JsonWeather.humidity_JSON)) {
-                humidity = reader.nextLong();
+                sink.setmHumidity(reader.nextLong());
             } else {
                 reader.skipValue();
             }
         }
         reader.endObject();
-        return new MainPart(temp, humidity);
     }
 
-    public Sys parseSysMessage(JsonReader reader) throws IOException {
-        long sunrise = 0l;
-        long sunset = 0l;
-
+    public void parseSysMessage(JsonReader reader,
+                                WeatherSink sink) throws IOException {
         reader.beginObject();
         while (reader.hasNext()) {
             String jsonPropertyName = reader.nextName();
             if (jsonPropertyName.equals(JsonWeather.sunrise_JSON)) {
-                sunrise = reader.nextLong();
+                sink.setmSunrise(reader.nextLong());
             } else if (jsonPropertyName.equals(JsonWeather.sunset_JSON)) {
-                sunset = reader.nextLong();
+                sink.setmSunset(reader.nextLong());
             } else {
                 reader.skipValue();
             }
         }
         reader.endObject();
-        return new Sys(sunrise, sunset);
-    }
-
-    private class Wind {
-        double mSpeed;
-        double mDeg;
-
-        Wind(double speed, double deg) {
-            mSpeed = speed;
-            mDeg = deg;
-        }
-    }
-
-    private class MainPart {
-        double mTemp;
-        long mHumidity;
-
-        MainPart(double temp, long humidity) {
-            mTemp = temp;
-            mHumidity = humidity;
-        }
-    }
-
-    private class Sys {
-        long mSunrise;
-        long mSunset;
-
-        Sys(long sunrise, long sunset) {
-            mSunrise = sunrise;
-            mSunset = sunset;
-        }
     }
 }
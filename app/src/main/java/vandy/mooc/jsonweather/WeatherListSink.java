@@ -0,0 +1,27 @@
+package vandy.mooc.jsonweather;
+
+/**
+ * Receives a response whose "list" array holds the weather of
+ * several cities (the group endpoint) or times (the forecast
+ * endpoint), one element at a time as a parser reads them.  Each
+ * element is parsed into the sink returned by beginElement() and
+ * handed back through endElement() as soon as it is complete, so the
+ * caller can act on it before the rest of the response arrives and
+ * the parser never holds more than one element.
+ *
+ * The fields outside the list are passed to the list sink itself:
+ * "cod", and the "id", "name", "sunrise" and "sunset" of the "city"
+ * object a forecast response describes its location with.
+ */
+public interface WeatherListSink extends WeatherSink {
+    /**
+     * @return the sink to parse the next element of the list into.
+     */
+    WeatherSink beginElement();
+
+    /**
+     * Called once the element last returned by beginElement() has
+     * been parsed.
+     */
+    void endElement();
+}
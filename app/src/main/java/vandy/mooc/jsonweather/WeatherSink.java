@@ -0,0 +1,30 @@
+package vandy.mooc.jsonweather;
+
+/**
+ * Receives the fields of a weather response one at a time as a
+ * parser reads them, so the parser can fill in the caller's object
+ * directly instead of building intermediate objects.  JsonWeather is
+ * one; a sink that fills in a WeatherData lets a lookup go from bytes
+ * to the object sent to the client in a single pass.
+ */
+public interface WeatherSink {
+    void setmCod(int cod);
+
+    void setmId(long id);
+
+    void setmDt(long dt);
+
+    void setmName(String name);
+
+    void setmSpeed(double speed);
+
+    void setmDeg(double deg);
+
+    void setmTemp(double temp);
+
+    void setmHumidity(long humidity);
+
+    void setmSunrise(long sunrise);
+
+    void setmSunset(long sunset);
+}
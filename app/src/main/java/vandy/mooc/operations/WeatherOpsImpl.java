@@ -31,6 +31,12 @@ public class WeatherOpsImpl implements WeatherOps {
      */
     protected final String TAG = getClass().getSimpleName();
 
+    /**
+     * How long, in milliseconds, the services may take to look up
+     * the weather before giving up.
+     */
+    private static final long LOOKUP_TIMEOUT_MILLIS = 15000;
+
     /**
      * Used to enable garbage collection.
      */
@@ -177,7 +183,8 @@ public class WeatherOpsImpl implements WeatherOps {
                 // sendResults() method of the mWeatherResults
                 // callback object, which runs in a Thread from the
                 // Thread pool managed by the Binder framework.
-                weatherRequest.getCurrentWeather(location,
+                weatherRequest.getCurrentWeatherWithTimeout(location,
+                        LOOKUP_TIMEOUT_MILLIS,
                         mWeatherResults);
             } catch (RemoteException e) {
                 Log.e(TAG, "RemoteException:" + e.getMessage());
@@ -211,13 +218,23 @@ public class WeatherOpsImpl implements WeatherOps {
                  */
                 private String mLocation;
 
+                /**
+                 * Reason the service refused the lookup, if it did.
+                 */
+                private String mError;
+
                 // get the weather data for the location in an AsyncTask due to blocking Sync call.
                 protected WeatherData doInBackground(String... acronyms) {
                     try {
                         mLocation = acronyms[0];
-                        return weatherCall.getCurrentWeather(mLocation);
+                        return weatherCall.getCurrentWeatherWithTimeout(mLocation,
+                                                                        LOOKUP_TIMEOUT_MILLIS);
                     } catch (RemoteException e) {
                         e.printStackTrace();
+                    } catch (IllegalStateException e) {
+                        // The service is too busy to take the lookup,
+                        // or the lookup timed out.
+                        mError = e.getMessage();
                     }
                     return null;
                 }
@@ -226,7 +243,10 @@ public class WeatherOpsImpl implements WeatherOps {
                  * Display the results in the UI Thread.
                  */
                 protected void onPostExecute(WeatherData weatherData) {
-                    if (weatherData != null)
+                    if (mError != null)
+                        Utils.showToast(mActivity.get(),
+                                        mError);
+                    else if (weatherData != null)
                         displayResult(weatherData);
                     else 
                         Utils.showToast(mActivity.get(),
@@ -1,12 +1,20 @@
 package vandy.mooc.services;
 
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import vandy.mooc.R;
 import vandy.mooc.aidl.WeatherData;
 import vandy.mooc.aidl.WeatherRequest;
 import vandy.mooc.aidl.WeatherResults;
+import vandy.mooc.utils.Deadline;
 import vandy.mooc.utils.Utils;
 
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.Resources;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
@@ -15,6 +23,18 @@ import android.util.Log;
  * @class WeatherServiceAsync
  */
 public class WeatherServiceAsync extends LifecycleLoggingService {
+    /**
+     * Value of the weather_async_rejection_policy resource that runs
+     * a rejected lookup on the calling Binder thread instead of
+     * replying with an error.
+     */
+    private static final String REJECTION_POLICY_CALLER_RUNS = "caller_runs";
+
+    /**
+     * Bounded pool of threads that run the lookups.
+     */
+    private ThreadPoolExecutor mExecutor;
+
     /**
      * Factory method that makes an Intent used to start the
      * WeatherServiceAsync when passed to bindService().
@@ -26,6 +46,29 @@ public class WeatherServiceAsync extends LifecycleLoggingService {
                 WeatherServiceAsync.class);
     }
 
+    /**
+     * Hook method called when the Service is created.  Applies the
+     * cache settings, since each service runs in its own process,
+     * and starts warming the cache in the background.
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Utils.configure(getApplicationContext());
+        Utils.prewarm(getApplicationContext());
+        mExecutor = makeExecutor();
+    }
+
+    /**
+     * Hook method called when the last client unbinds from the
+     * Service.  Lookups already queued are still answered.
+     */
+    @Override
+    public void onDestroy() {
+        mExecutor.shutdown();
+        super.onDestroy();
+    }
+
     /**
      * Called when a client (e.g., WeatherActivity) calls
      * bindService() with the proper Intent.  Returns the
@@ -37,15 +80,101 @@ public class WeatherServiceAsync extends LifecycleLoggingService {
         return mWeatherRequest;
     }
 
+    /**
+     * The concrete implementation of the AIDL Interface
+     * WeatherRequest.  Binder delivers one-way calls on the same
+     * IBinder one at a time, so each request is handed to mExecutor
+     * rather than run inline, letting lookups for different
+     * locations proceed in parallel.
+     */
     WeatherRequest.Stub mWeatherRequest = new WeatherRequest.Stub() {
 
         @Override
-        public void getCurrentWeather(String location, WeatherResults callback)
+        public void getCurrentWeather(String location,
+                                      WeatherResults callback)
                 throws RemoteException {
+            submitLookup(location, Deadline.NONE, callback);
+        }
 
-            // Call the web service to get the weather results for the location
-            WeatherData weatherResult = Utils.getResult(location, getApplicationContext());
+        @Override
+        public void getCurrentWeatherWithTimeout(String location,
+                                                 long timeoutMillis,
+                                                 WeatherResults callback)
+                throws RemoteException {
+            submitLookup(location, Deadline.after(timeoutMillis), callback);
+        }
+    };
 
+    /**
+     * Hand the lookup of @a location to mExecutor, or reply with an
+     * error if the executor is saturated.
+     */
+    private void submitLookup(final String location,
+                              final Deadline deadline,
+                              final WeatherResults callback)
+            throws RemoteException {
+        try {
+            mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        lookUpWeather(location, deadline, callback);
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Rejected lookup for " + location
+                  + ", executor is saturated");
+            callback.sendError("Service is busy, please try again");
+        }
+    }
+
+    /**
+     * Look up the weather for @a location and reply through @a
+     * callback.  Runs on a thread of mExecutor.  A lookup whose
+     * deadline passed while it was queued is dropped, and one whose
+     * deadline passes while it runs is abandoned; either way the
+     * client is sent an error.
+     */
+    private void lookUpWeather(final String location,
+                               final Deadline deadline,
+                               final WeatherResults callback) {
+        // If a stale result is returned, the refreshed result is
+        // pushed to the callback once it arrives.
+        Utils.OnRefreshListener listener = new Utils.OnRefreshListener() {
+                @Override
+                public void onRefreshed(WeatherData weatherData) {
+                    try {
+                        callback.sendResults(weatherData);
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Unable to send refreshed result for "
+                              + location, e);
+                    }
+                }
+            };
+
+        WeatherData weatherResult;
+        try {
+            deadline.check();
+
+            // Call the web service to get the weather results for
+            // the location.
+            weatherResult = Utils.getResult(location,
+                                            getApplicationContext(),
+                                            listener,
+                                            null,
+                                            deadline);
+        } catch (IllegalStateException e) {
+            Log.d(TAG, "Dropping lookup for " + location + ": " + e.getMessage());
+            sendError(callback, e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            // Nothing else may escape a worker thread, or the
+            // client would never hear back.
+            Log.e(TAG, "Lookup for " + location + " failed", e);
+            sendError(callback, "Weather lookup failed, please try again");
+            return;
+        }
+
+        try {
             if (weatherResult != null) {
                 Log.d(TAG, ""
                         + weatherResult.toString()
@@ -55,6 +184,45 @@ public class WeatherServiceAsync extends LifecycleLoggingService {
             } else {
                 callback.sendError("Invalid location entered");
             }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to send result for " + location, e);
         }
-    };
+    }
+
+    /**
+     * Send @a reason to @a callback, logging any failure to do so.
+     */
+    private void sendError(WeatherResults callback, String reason) {
+        try {
+            callback.sendError(reason);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to send error", e);
+        }
+    }
+
+    /**
+     * Create the executor that runs lookups, sized and bounded by the
+     * app's resources.
+     */
+    private ThreadPoolExecutor makeExecutor() {
+        Resources resources = getResources();
+        int poolSize =
+            resources.getInteger(R.integer.weather_async_pool_size);
+        int queueCapacity =
+            resources.getInteger(R.integer.weather_async_queue_capacity);
+        String rejectionPolicy =
+            resources.getString(R.string.weather_async_rejection_policy);
+
+        ThreadPoolExecutor executor =
+            new ThreadPoolExecutor(poolSize,
+                                   poolSize,
+                                   30,
+                                   TimeUnit.SECONDS,
+                                   new LinkedBlockingQueue<Runnable>(queueCapacity),
+                                   REJECTION_POLICY_CALLER_RUNS.equals(rejectionPolicy)
+                                   ? new ThreadPoolExecutor.CallerRunsPolicy()
+                                   : new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 }
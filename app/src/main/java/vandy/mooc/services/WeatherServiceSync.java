@@ -3,12 +3,16 @@ package vandy.mooc.services;
 import java.util.ArrayList;
 import java.util.List;
 
+import vandy.mooc.R;
 import vandy.mooc.aidl.WeatherCall;
 import vandy.mooc.aidl.WeatherData;
+import vandy.mooc.utils.AdmissionController;
+import vandy.mooc.utils.Deadline;
 import vandy.mooc.utils.Utils;
 
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.Resources;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
@@ -17,6 +21,12 @@ import android.util.Log;
  * @class WeatherServiceSync
  */
 public class WeatherServiceSync extends LifecycleLoggingService {
+    /**
+     * Limits how many Binder threads may block on a download at
+     * once, so the rest stay free for other transactions.
+     */
+    private AdmissionController mAdmission;
+
     /**
      * Factory method that makes an Intent used to start the
      * WeatherServiceSync when passed to bindService().
@@ -28,6 +38,24 @@ public class WeatherServiceSync extends LifecycleLoggingService {
                 WeatherServiceSync.class);
     }
 
+    /**
+     * Hook method called when the Service is created.  Applies the
+     * cache settings, since each service runs in its own process,
+     * and starts warming the cache in the background.
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Utils.configure(getApplicationContext());
+        Utils.prewarm(getApplicationContext());
+
+        Resources resources = getResources();
+        mAdmission = new AdmissionController
+            (resources.getInteger(R.integer.weather_sync_max_concurrent_lookups),
+             resources.getInteger(R.integer.weather_sync_max_queued_lookups),
+             resources.getInteger(R.integer.weather_sync_queue_timeout_millis));
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mWeatherCallImpl;
@@ -44,21 +72,42 @@ public class WeatherServiceSync extends LifecycleLoggingService {
         @Override
         public WeatherData getCurrentWeather(String location)
                 throws RemoteException {
+            return lookUpWeather(location, Deadline.NONE);
+        }
 
-            // Call the web service
-            WeatherData weatherResult = Utils.getResult(location, getApplicationContext());
+        @Override
+        public WeatherData getCurrentWeatherWithTimeout(String location,
+                                                        long timeoutMillis)
+                throws RemoteException {
+            return lookUpWeather(location, Deadline.after(timeoutMillis));
+        }
+    };
 
-            if (weatherResult != null) {
-                Log.d(TAG, ""
-                        + weatherResult.toString()
-                        + " result for location: "
-                        + location);
+    /**
+     * Look up the weather for @a location on the calling Binder
+     * thread, giving up once @a deadline passes.
+     */
+    private WeatherData lookUpWeather(String location, Deadline deadline) {
+        // Call the web service.  Lookups that miss the cache are
+        // rejected with an IllegalStateException, which Binder
+        // passes back to the client, when the service is
+        // saturated or the deadline passes.
+        WeatherData weatherResult = Utils.getResult(location,
+                                                    getApplicationContext(),
+                                                    null,
+                                                    mAdmission,
+                                                    deadline);
+
+        if (weatherResult != null) {
+            Log.d(TAG, ""
+                    + weatherResult.toString()
+                    + " result for location: "
+                    + location);
 
-                // Return the weather data back
-                return weatherResult;
-            } else {
-                return null;
-            }
+            // Return the weather data back
+            return weatherResult;
+        } else {
+            return null;
         }
-    };
+    }
 }
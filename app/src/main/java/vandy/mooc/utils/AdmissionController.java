@@ -0,0 +1,139 @@
+package vandy.mooc.utils;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @class AdmissionController
+ *
+ * @brief Caps how many callers may run a lookup at once and how many
+ *        more may wait for a turn.  Callers beyond that, or callers
+ *        that wait too long, are rejected at once with an
+ *        IllegalStateException, which Binder passes back to the
+ *        client.  WeatherServiceSync uses it so that slow downloads
+ *        cannot tie up every thread in its process's Binder pool.
+ */
+public class AdmissionController {
+    /**
+     * Permits for the callers allowed to run at once.
+     */
+    private final Semaphore mPermits;
+
+    /**
+     * Maximum number of callers allowed to wait for a permit.
+     */
+    private final int mMaxQueued;
+
+    /**
+     * How long a caller may wait for a permit, in milliseconds.
+     */
+    private final long mQueueTimeoutMillis;
+
+    /**
+     * Number of callers currently waiting for a permit.
+     */
+    private final AtomicInteger mQueued = new AtomicInteger();
+
+    /**
+     * Number of callers rejected so far.
+     */
+    private final AtomicLong mRejected = new AtomicLong();
+
+    /**
+     * Let at most @a maxConcurrent callers run at once, and at most
+     * @a maxQueued more wait up to @a queueTimeoutMillis each.
+     */
+    public AdmissionController(int maxConcurrent,
+                               int maxQueued,
+                               long queueTimeoutMillis) {
+        mPermits = new Semaphore(maxConcurrent, true);
+        mMaxQueued = maxQueued;
+        mQueueTimeoutMillis = queueTimeoutMillis;
+    }
+
+    /**
+     * Wait for permission to run, for at most the queue timeout.
+     * Every successful call must be matched by a call to release().
+     *
+     * @throws IllegalStateException if the caller is rejected
+     */
+    public void acquire() {
+        acquire(mQueueTimeoutMillis);
+    }
+
+    /**
+     * Wait for permission to run, for at most the queue timeout or
+     * until @a deadline, whichever comes first.  Every successful
+     * call must be matched by a call to release().
+     *
+     * @throws IllegalStateException if the caller is rejected, or if
+     * @a deadline passes first
+     */
+    public void acquire(Deadline deadline) {
+        deadline.check();
+        long timeoutMillis = deadline.clamp(mQueueTimeoutMillis);
+        acquire(timeoutMillis, timeoutMillis < mQueueTimeoutMillis);
+    }
+
+    /**
+     * Wait for permission to run, for at most @a timeoutMillis.
+     * Every successful call must be matched by a call to release().
+     *
+     * @throws IllegalStateException if the caller is rejected
+     */
+    public void acquire(long timeoutMillis) {
+        acquire(timeoutMillis, false);
+    }
+
+    /**
+     * Wait for permission to run, for at most @a timeoutMillis.
+     *
+     * @param deadlineBound true if @a timeoutMillis is the time left
+     * until the caller's deadline, so that running out of it means
+     * the deadline passed
+     */
+    private void acquire(long timeoutMillis, boolean deadlineBound) {
+        if (mPermits.tryAcquire())
+            return;
+
+        if (mQueued.incrementAndGet() > mMaxQueued) {
+            mQueued.decrementAndGet();
+            throw reject();
+        }
+
+        try {
+            if (timeoutMillis > 0
+                && mPermits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+                return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw reject();
+        } finally {
+            mQueued.decrementAndGet();
+        }
+
+        // A caller whose wait was cut short by its deadline ran out
+        // of time rather than found the service busy.
+        if (deadlineBound)
+            throw new IllegalStateException(Deadline.EXCEEDED_MESSAGE);
+        throw reject();
+    }
+
+    /**
+     * Give back the permission obtained by acquire().
+     */
+    public void release() {
+        mPermits.release();
+    }
+
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    private IllegalStateException reject() {
+        mRejected.incrementAndGet();
+        return new IllegalStateException("Weather service is busy, please try again");
+    }
+}
@@ -0,0 +1,230 @@
+package vandy.mooc.utils;
+
+import android.util.Log;
+
+/**
+ * @class CircuitBreaker
+ *
+ * @brief Stops calls to an upstream service that is failing, so
+ *        callers fail at once instead of each waiting for the full
+ *        connect or read timeout.  The breaker is CLOSED while the
+ *        service is healthy and records whether each of the latest
+ *        calls failed, counting a call slower than the slow-call
+ *        threshold as a failure.  Once enough of those calls have
+ *        failed it turns OPEN and refuses calls for the open period.
+ *        After that it is HALF_OPEN and lets a single trial call
+ *        through: success closes the breaker again, failure opens it
+ *        for another period.
+ */
+public class CircuitBreaker {
+    /**
+     * Logging tag used by the debugger.
+     */
+    private final static String TAG = CircuitBreaker.class.getCanonicalName();
+
+    /**
+     * The states of the breaker.
+     */
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Whether each of the latest calls failed, as a ring buffer.
+     */
+    private final boolean[] mOutcomes;
+
+    /**
+     * Index of the slot the next outcome goes into.
+     */
+    private int mNext;
+
+    /**
+     * Number of outcomes recorded, and how many were failures.
+     */
+    private int mCalls;
+    private int mFailures;
+
+    /**
+     * Fewest calls recorded before the breaker may open.
+     */
+    private final int mMinCalls;
+
+    /**
+     * Percentage of the latest calls that must fail to open the
+     * breaker.
+     */
+    private final int mFailureRatePercent;
+
+    /**
+     * Calls slower than this, in milliseconds, count as failures.
+     */
+    private final long mSlowCallMillis;
+
+    /**
+     * How long the breaker stays open, in milliseconds.
+     */
+    private final long mOpenMillis;
+
+    /**
+     * Current state.
+     */
+    private State mState = State.CLOSED;
+
+    /**
+     * Time until which an open breaker refuses calls.
+     */
+    private long mOpenUntil;
+
+    /**
+     * Whether the trial call of a half-open breaker is in progress.
+     */
+    private boolean mTrialInProgress;
+
+    /**
+     * Number of calls refused so far.
+     */
+    private long mRejected;
+
+    /**
+     * Open the breaker once at least @a failureRatePercent of the
+     * latest @a windowSize calls (and at least @a minCalls of them)
+     * failed or took longer than @a slowCallMillis, and keep it open
+     * for @a openMillis.
+     */
+    public CircuitBreaker(int windowSize,
+                          int minCalls,
+                          int failureRatePercent,
+                          long slowCallMillis,
+                          long openMillis) {
+        mOutcomes = new boolean[windowSize];
+        mMinCalls = Math.min(minCalls, windowSize);
+        mFailureRatePercent = failureRatePercent;
+        mSlowCallMillis = slowCallMillis;
+        mOpenMillis = openMillis;
+    }
+
+    /**
+     * @return true if a call made now would be refused.  Unlike
+     * allowRequest() this never takes the trial call of a half-open
+     * breaker, so it is a cheap way to fail fast before queueing.
+     */
+    public synchronized boolean isRejecting(long now) {
+        switch (mState) {
+        case OPEN:
+            return now < mOpenUntil;
+        case HALF_OPEN:
+            return mTrialInProgress;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Ask to make a call.  Every call allowed must be followed by
+     * onSuccess(), onFailure() or onCancelled().
+     *
+     * @return true if the call may go ahead
+     */
+    public synchronized boolean allowRequest(long now) {
+        if (mState == State.OPEN && now >= mOpenUntil) {
+            Log.d(TAG, "Half-open, trying a call");
+            mState = State.HALF_OPEN;
+            mTrialInProgress = false;
+        }
+
+        boolean allowed;
+        switch (mState) {
+        case OPEN:
+            allowed = false;
+            break;
+        case HALF_OPEN:
+            allowed = !mTrialInProgress;
+            mTrialInProgress = true;
+            break;
+        default:
+            allowed = true;
+        }
+        if (!allowed)
+            mRejected++;
+        return allowed;
+    }
+
+    /**
+     * Record a call that succeeded after @a latencyMillis.
+     */
+    public void onSuccess(long latencyMillis, long now) {
+        record(latencyMillis > mSlowCallMillis, now);
+    }
+
+    /**
+     * Record a call that failed.
+     */
+    public void onFailure(long now) {
+        record(true, now);
+    }
+
+    /**
+     * Record a call that was abandoned before it had an outcome, for
+     * instance because its caller's deadline passed.  It counts as
+     * neither a success nor a failure, but lets a half-open breaker
+     * allow another trial call.
+     */
+    public synchronized void onCancelled() {
+        if (mState == State.HALF_OPEN)
+            mTrialInProgress = false;
+    }
+
+    private synchronized void record(boolean failed, long now) {
+        if (mState == State.HALF_OPEN) {
+            mTrialInProgress = false;
+            if (failed) {
+                open(now);
+            } else {
+                Log.d(TAG, "Closed after a successful trial call");
+                mState = State.CLOSED;
+                reset();
+            }
+            return;
+        }
+
+        // Calls that were allowed before the breaker opened may still
+        // finish after it did; they don't change anything.
+        if (mState == State.OPEN)
+            return;
+
+        if (mCalls == mOutcomes.length) {
+            if (mOutcomes[mNext])
+                mFailures--;
+        } else {
+            mCalls++;
+        }
+        mOutcomes[mNext] = failed;
+        if (failed)
+            mFailures++;
+        mNext = (mNext + 1) % mOutcomes.length;
+
+        if (mCalls >= mMinCalls
+            && mFailures * 100 >= mFailureRatePercent * mCalls)
+            open(now);
+    }
+
+    private void open(long now) {
+        Log.d(TAG, "Opened for " + mOpenMillis + " ms");
+        mState = State.OPEN;
+        mOpenUntil = now + mOpenMillis;
+        reset();
+    }
+
+    private void reset() {
+        mNext = 0;
+        mCalls = 0;
+        mFailures = 0;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    public synchronized long getRejectedCount() {
+        return mRejected;
+    }
+}
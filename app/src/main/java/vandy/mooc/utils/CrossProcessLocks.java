@@ -0,0 +1,120 @@
+package vandy.mooc.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+import android.util.Log;
+
+/**
+ * @class CrossProcessLocks
+ *
+ * @brief Hands out exclusive locks keyed by string that are honored
+ *        by every process of the app, using one lock file per key.
+ *        WeatherServiceSync and WeatherServiceAsync run in separate
+ *        processes, so SingleFlight alone cannot stop them fetching
+ *        the same location at the same time; holding one of these
+ *        locks around a fetch can.  The operating system drops the
+ *        lock if its holder dies, so a crashed process never leaves
+ *        a location locked.
+ */
+public class CrossProcessLocks {
+    /**
+     * Logging tag used by the debugger.
+     */
+    private final static String TAG =
+        CrossProcessLocks.class.getCanonicalName();
+
+    /**
+     * How often a waiting caller retries the lock, in milliseconds.
+     */
+    private final static long POLL_INTERVAL_MILLIS = 25;
+
+    /**
+     * A lock held by this process.
+     */
+    public static class Lock {
+        private final RandomAccessFile mFile;
+        private final FileLock mLock;
+
+        private Lock(RandomAccessFile file, FileLock lock) {
+            mFile = file;
+            mLock = lock;
+        }
+
+        /**
+         * Release the lock.  May be called from any thread.
+         */
+        public void release() {
+            try {
+                mLock.release();
+                mFile.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to release lock", e);
+            }
+        }
+    }
+
+    /**
+     * Directory holding the lock files.
+     */
+    private final File mDirectory;
+
+    /**
+     * Create a set of locks whose files live in @a directory.
+     */
+    public CrossProcessLocks(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Acquire the lock for @a key, waiting at most @a timeoutMillis
+     * for another process to release it.
+     *
+     * @return the lock, or null if it could not be acquired in time,
+     * in which case the caller should carry on without it
+     */
+    public Lock acquire(String key, long timeoutMillis) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Unable to create " + mDirectory);
+            return null;
+        }
+
+        // Keys are hashed into file names.  A collision only makes two
+        // keys share a lock, which is harmless.
+        File file = new File(mDirectory,
+                             Integer.toHexString(key.hashCode()) + ".lock");
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            for (;;) {
+                FileLock lock = raf.getChannel().tryLock();
+                if (lock != null)
+                    return new Lock(raf, lock);
+                if (System.currentTimeMillis() >= deadline)
+                    break;
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            }
+            Log.d(TAG, "Timed out waiting for lock on " + key);
+        } catch (OverlappingFileLockException e) {
+            // Another key that hashes to the same file is locked by
+            // this process.
+            Log.d(TAG, "Lock file for " + key + " already held in process");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to lock " + file, e);
+        }
+
+        try {
+            if (raf != null)
+                raf.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close " + file, e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,78 @@
+package vandy.mooc.utils;
+
+/**
+ * @class Deadline
+ *
+ * @brief A point in time by which a lookup must finish, set by the
+ *        client as a timeout and carried through queueing, waiting
+ *        and the HTTP download so each step only waits for what is
+ *        left of it.  Deadlines use the monotonic System.nanoTime()
+ *        clock, so they are unaffected by changes to the wall clock.
+ */
+public class Deadline {
+    /**
+     * A deadline that never expires.
+     */
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    /**
+     * Message of the exception thrown once the deadline has passed.
+     */
+    public static final String EXCEEDED_MESSAGE = "Weather lookup timed out";
+
+    /**
+     * Value of System.nanoTime() at which the deadline expires, or
+     * Long.MAX_VALUE if it never does.
+     */
+    private final long mExpiresAtNanos;
+
+    private Deadline(long expiresAtNanos) {
+        mExpiresAtNanos = expiresAtNanos;
+    }
+
+    /**
+     * Return a deadline @a timeoutMillis from now, or NONE if @a
+     * timeoutMillis is not positive.
+     */
+    public static Deadline after(long timeoutMillis) {
+        if (timeoutMillis <= 0)
+            return NONE;
+        return new Deadline(System.nanoTime() + timeoutMillis * 1000000L);
+    }
+
+    /**
+     * @return true if the deadline has passed.
+     */
+    public boolean isExpired() {
+        return this != NONE && System.nanoTime() - mExpiresAtNanos >= 0;
+    }
+
+    /**
+     * @return the milliseconds left until the deadline, 0 if it has
+     * passed, or Long.MAX_VALUE if there is none.
+     */
+    public long remainingMillis() {
+        if (this == NONE)
+            return Long.MAX_VALUE;
+        return Math.max(0, (mExpiresAtNanos - System.nanoTime()) / 1000000L);
+    }
+
+    /**
+     * @return @a timeoutMillis, or the time left until the deadline if
+     * that is shorter.
+     */
+    public long clamp(long timeoutMillis) {
+        return Math.min(timeoutMillis, remainingMillis());
+    }
+
+    /**
+     * Throw if the deadline has passed.
+     *
+     * @throws IllegalStateException if the deadline has passed, which
+     * Binder passes back to the client
+     */
+    public void check() {
+        if (isExpired())
+            throw new IllegalStateException(EXCEEDED_MESSAGE);
+    }
+}
@@ -0,0 +1,348 @@
+package vandy.mooc.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @class FakeWeatherTransport
+ *
+ * @brief An in-memory stand-in for the Weather Service, so the
+ *        service pipeline can be exercised and benchmarked without a
+ *        network.  Every weather request is answered with the same
+ *        payload, in the format of res/raw/sample.json, and every
+ *        group request with a "list" of that payload, one per city
+ *        id.  Responses carry an ETag and honor If-None-Match.
+ *
+ *        Its behavior can be tuned to model a slow or failing
+ *        service: a latency (plus random jitter) before each
+ *        response, a share of requests that fail, a cap on the
+ *        requests answered at once beyond which it answers 503, a
+ *        limit on how fast bodies are sent, a max-age to send, and
+ *        locations it answers 404 for.  All settings may be changed
+ *        while requests are in flight.
+ */
+public class FakeWeatherTransport implements WeatherTransport {
+    /**
+     * Body sent for unknown locations, as the Weather Service does.
+     */
+    private final static String NOT_FOUND_BODY =
+        "{\"cod\":\"404\",\"message\":\"city not found\"}";
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Payload of a weather response, and its ETag.
+     */
+    private final String mPayload;
+    private final String mETag;
+
+    private final Random mRandom = new Random();
+
+    private volatile long mLatencyMillis;
+    private volatile long mJitterMillis;
+    private volatile int mErrorRatePercent;
+    private volatile int mMaxConcurrentRequests = Integer.MAX_VALUE;
+    private volatile long mBytesPerSecond;
+    private volatile int mMaxAgeSeconds = -1;
+    private volatile Set<String> mUnknownLocations =
+        Collections.emptySet();
+
+    /**
+     * Number of requests being answered.
+     */
+    private final AtomicInteger mInFlight = new AtomicInteger();
+
+    /**
+     * Number of requests received.
+     */
+    private final AtomicLong mRequests = new AtomicLong();
+
+    /**
+     * Answer every weather request with @a payload, a weather
+     * response in UTF-8.
+     */
+    public FakeWeatherTransport(byte[] payload) {
+        mPayload = new String(payload, UTF_8).trim();
+        mETag = "\"" + Integer.toHexString(Arrays.hashCode(payload)) + "\"";
+    }
+
+    /**
+     * Wait @a latencyMillis, plus up to @a jitterMillis more, before
+     * answering each request.
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        mLatencyMillis = latencyMillis;
+        mJitterMillis = jitterMillis;
+    }
+
+    /**
+     * Fail @a errorRatePercent percent of requests with an
+     * IOException, as if the connection broke.
+     */
+    public void setErrorRatePercent(int errorRatePercent) {
+        mErrorRatePercent = errorRatePercent;
+    }
+
+    /**
+     * Answer 503 to requests beyond @a maxConcurrentRequests being
+     * answered at once.
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        mMaxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Send bodies at no more than @a bytesPerSecond, or 0 for no
+     * limit.
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Send Cache-Control: max-age=@a maxAgeSeconds with each
+     * response, or no Cache-Control if it is negative.
+     */
+    public void setMaxAgeSeconds(int maxAgeSeconds) {
+        mMaxAgeSeconds = maxAgeSeconds;
+    }
+
+    /**
+     * Answer 404 for each of @a locations.
+     */
+    public void setUnknownLocations(Set<String> locations) {
+        Set<String> unknown = new HashSet<>();
+        for (String location : locations)
+            unknown.add(WeatherCache.normalize(location));
+        mUnknownLocations = unknown;
+    }
+
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    @Override
+    public Exchange get(String url,
+                        Map<String, String> headers,
+                        Deadline deadline) throws IOException {
+        deadline.check();
+        mRequests.incrementAndGet();
+
+        if (mInFlight.incrementAndGet() > mMaxConcurrentRequests) {
+            mInFlight.decrementAndGet();
+            return new FakeExchange(HttpURLConnection.HTTP_UNAVAILABLE,
+                                    Collections.<String, String>emptyMap(),
+                                    new byte[0]);
+        }
+
+        boolean answered = false;
+        try {
+            waitFor(mLatencyMillis + nextLong(mJitterMillis), deadline);
+            if (mRandom.nextInt(100) < mErrorRatePercent)
+                throw new IOException("Injected failure");
+
+            FakeExchange exchange = answer(url, headers);
+            answered = true;
+            return exchange;
+        } finally {
+            if (!answered)
+                mInFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Build the response to a request for @a url.
+     */
+    private FakeExchange answer(String url,
+                                Map<String, String> headers) throws IOException {
+        Map<String, String> query = parseQuery(url);
+        Map<String, String> responseHeaders = new HashMap<>();
+
+        String location = query.get("q");
+        if (location != null
+            && mUnknownLocations.contains(WeatherCache.normalize(location)))
+            return new FakeExchange(HttpURLConnection.HTTP_NOT_FOUND,
+                                    responseHeaders,
+                                    NOT_FOUND_BODY.getBytes(UTF_8));
+
+        if (mMaxAgeSeconds >= 0)
+            responseHeaders.put("Cache-Control", "max-age=" + mMaxAgeSeconds);
+
+        String ids = query.get("id");
+        if (ids != null)
+            return new FakeExchange(HttpURLConnection.HTTP_OK,
+                                    responseHeaders,
+                                    groupBody(ids.split(",")));
+
+        responseHeaders.put("ETag", mETag);
+        if (mETag.equals(headers.get("If-None-Match")))
+            return new FakeExchange(HttpURLConnection.HTTP_NOT_MODIFIED,
+                                    responseHeaders,
+                                    new byte[0]);
+        return new FakeExchange(HttpURLConnection.HTTP_OK,
+                                responseHeaders,
+                                mPayload.getBytes(UTF_8));
+    }
+
+    /**
+     * Return a group response for @a cityIds.  Each city is the
+     * payload with its "id" overridden by appending a later one.
+     */
+    private byte[] groupBody(String[] cityIds) {
+        String city = mPayload.substring(0, mPayload.lastIndexOf('}'));
+        StringBuilder body = new StringBuilder();
+        body.append("{\"cnt\":").append(cityIds.length).append(",\"list\":[");
+        for (int i = 0; i < cityIds.length; i++) {
+            if (i > 0)
+                body.append(',');
+            body.append(city).append(",\"id\":").append(cityIds[i].trim()).append('}');
+        }
+        body.append("]}");
+        return body.toString().getBytes(UTF_8);
+    }
+
+    private static Map<String, String> parseQuery(String url)
+        throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        int start = url.indexOf('?');
+        if (start < 0)
+            return query;
+        for (String parameter : url.substring(start + 1).split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0)
+                query.put(parameter.substring(0, equals).toLowerCase(Locale.US),
+                          URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+        }
+        return query;
+    }
+
+    /**
+     * Sleep for @a millis, or fail as a read timeout would if @a
+     * deadline passes first.
+     */
+    private static void waitFor(long millis, Deadline deadline) throws IOException {
+        long remaining = deadline.remainingMillis();
+        try {
+            Thread.sleep(Math.min(millis, remaining));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+        if (millis >= remaining)
+            throw new SocketTimeoutException("Read timed out");
+    }
+
+    private long nextLong(long bound) {
+        return bound > 0 ? (long) (mRandom.nextDouble() * bound) : 0;
+    }
+
+    /**
+     * A canned response, which stops counting as in flight once its
+     * body is closed or it is aborted.
+     */
+    private class FakeExchange implements Exchange {
+        private final int mStatusCode;
+        private final Map<String, String> mHeaders;
+        private final byte[] mBody;
+        private boolean mDone;
+
+        FakeExchange(int statusCode,
+                     Map<String, String> headers,
+                     byte[] body) {
+            mStatusCode = statusCode;
+            mHeaders = headers;
+            mBody = body;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mHeaders.get(name);
+        }
+
+        @Override
+        public InputStream getBody() {
+            return new FilterInputStream(new ByteArrayInputStream(mBody)) {
+                private long mStartNanos = System.nanoTime();
+                private long mSent;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length)
+                    throws IOException {
+                    int count = in.read(buffer, offset, length);
+                    if (count > 0) {
+                        mSent += count;
+                        throttle();
+                    }
+                    return count;
+                }
+
+                /**
+                 * Sleep until sending mSent bytes took as long as the
+                 * byte rate allows.
+                 */
+                private void throttle() throws IOException {
+                    long bytesPerSecond = mBytesPerSecond;
+                    if (bytesPerSecond <= 0)
+                        return;
+                    long dueMillis = mSent * 1000 / bytesPerSecond
+                        - (System.nanoTime() - mStartNanos) / 1000000L;
+                    if (dueMillis > 0) {
+                        try {
+                            Thread.sleep(dueMillis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted");
+                        }
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    finish();
+                }
+            };
+        }
+
+        @Override
+        public void abort() {
+            finish();
+        }
+
+        private synchronized void finish() {
+            if (!mDone) {
+                mDone = true;
+                if (mStatusCode != HttpURLConnection.HTTP_UNAVAILABLE)
+                    mInFlight.decrementAndGet();
+            }
+        }
+    }
+}
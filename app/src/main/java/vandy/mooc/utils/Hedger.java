@@ -0,0 +1,178 @@
+package vandy.mooc.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * @class Hedger
+ *
+ * @brief Cuts the tail latency of a call by hedging it: if the first
+ *        attempt hasn't answered within a delay taken from a
+ *        percentile of recent latencies, a second attempt is started
+ *        and whichever answers first wins.  A null result counts as a
+ *        failure, so the other attempt is waited for.  Hedges are
+ *        paid for from a RetryBudget, so they cannot amplify load
+ *        during an outage.
+ */
+public class Hedger {
+    /**
+     * Logging tag used by the debugger.
+     */
+    private final static String TAG = Hedger.class.getCanonicalName();
+
+    /**
+     * Samples needed before the percentile is trusted.
+     */
+    private final static int MIN_SAMPLES = 10;
+
+    /**
+     * Runs the attempts.
+     */
+    private final ExecutorService mExecutor;
+
+    /**
+     * Latencies of recent successful attempts.
+     */
+    private final LatencyTracker mLatencies;
+
+    /**
+     * Pays for the hedges.
+     */
+    private final RetryBudget mBudget;
+
+    /**
+     * Percentile of recent latencies to wait before hedging.
+     */
+    private final int mPercentile;
+
+    /**
+     * Shortest delay before hedging, in milliseconds, which is also
+     * used until enough latencies have been recorded.
+     */
+    private final long mMinDelayMillis;
+
+    /**
+     * Number of hedges started.
+     */
+    private final AtomicLong mHedges = new AtomicLong();
+
+    public Hedger(ExecutorService executor,
+                  LatencyTracker latencies,
+                  RetryBudget budget,
+                  int percentile,
+                  long minDelayMillis) {
+        mExecutor = executor;
+        mLatencies = latencies;
+        mBudget = budget;
+        mPercentile = percentile;
+        mMinDelayMillis = minDelayMillis;
+    }
+
+    /**
+     * Run @a callable, hedging it if it is slow, and return the first
+     * non-null result, or null if every attempt returned null.
+     *
+     * @throws TimeoutException if @a deadline passes first
+     * @throws Exception whatever the last attempt threw
+     */
+    public <V> V call(Callable<V> callable,
+                      Deadline deadline) throws Exception {
+        mBudget.deposit();
+
+        ExecutorCompletionService<V> attempts =
+            new ExecutorCompletionService<>(mExecutor);
+        List<Future<V>> futures = new ArrayList<>(2);
+        try {
+            try {
+                futures.add(attempts.submit(timed(callable)));
+            } catch (RejectedExecutionException e) {
+                // Every thread is busy, so run the call unhedged.
+                return callable.call();
+            }
+
+            Future<V> done = attempts.poll(deadline.clamp(getHedgeDelayMillis()),
+                                           TimeUnit.MILLISECONDS);
+            if (done == null && !deadline.isExpired() && mBudget.tryWithdraw()) {
+                try {
+                    futures.add(attempts.submit(timed(callable)));
+                    mHedges.incrementAndGet();
+                    Log.d(TAG, "Hedging slow call after "
+                          + getHedgeDelayMillis() + " ms");
+                } catch (RejectedExecutionException e) {
+                    Log.d(TAG, "No thread free to hedge");
+                }
+            }
+
+            Exception failure = null;
+            for (int outstanding = futures.size(); outstanding > 0; outstanding--) {
+                if (done == null)
+                    done = deadline == Deadline.NONE
+                        ? attempts.take()
+                        : attempts.poll(deadline.remainingMillis(),
+                                        TimeUnit.MILLISECONDS);
+                if (done == null)
+                    throw new TimeoutException(Deadline.EXCEEDED_MESSAGE);
+
+                try {
+                    V result = done.get();
+                    if (result != null)
+                        return result;
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof Exception
+                        ? (Exception) e.getCause()
+                        : e;
+                }
+                done = null;
+            }
+
+            if (failure != null)
+                throw failure;
+            return null;
+        } finally {
+            for (Future<V> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    /**
+     * @return how long to wait for an attempt before hedging it.
+     */
+    public long getHedgeDelayMillis() {
+        return Math.max(mMinDelayMillis,
+                        mLatencies.percentile(mPercentile,
+                                              MIN_SAMPLES,
+                                              mMinDelayMillis));
+    }
+
+    public long getHedgeCount() {
+        return mHedges.get();
+    }
+
+    /**
+     * Wrap @a callable so the latency of each successful attempt is
+     * recorded.
+     */
+    private <V> Callable<V> timed(final Callable<V> callable) {
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                long start = System.nanoTime();
+                V result = callable.call();
+                if (result != null)
+                    mLatencies.record((System.nanoTime() - start) / 1000000L);
+                return result;
+            }
+        };
+    }
+}
@@ -0,0 +1,58 @@
+package vandy.mooc.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * @class HttpWeatherTransport
+ *
+ * @brief The production WeatherTransport, which makes each request on
+ *        a pooled keep-alive HttpURLConnection opened by
+ *        WeatherHttpClient.
+ */
+public class HttpWeatherTransport implements WeatherTransport {
+    @Override
+    public Exchange get(String url,
+                        Map<String, String> headers,
+                        Deadline deadline) throws IOException {
+        HttpURLConnection connection =
+            WeatherHttpClient.open(new URL(url), deadline);
+        for (Map.Entry<String, String> header : headers.entrySet())
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        return new HttpExchange(connection);
+    }
+
+    /**
+     * An exchange made on an HttpURLConnection.
+     */
+    private static class HttpExchange implements Exchange {
+        private final HttpURLConnection mConnection;
+
+        HttpExchange(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public int getStatusCode() throws IOException {
+            return mConnection.getResponseCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return WeatherHttpClient.getInputStream(mConnection);
+        }
+
+        @Override
+        public void abort() {
+            mConnection.disconnect();
+        }
+    }
+}
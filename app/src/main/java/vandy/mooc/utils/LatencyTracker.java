@@ -0,0 +1,62 @@
+package vandy.mooc.utils;
+
+import java.util.Arrays;
+
+/**
+ * @class LatencyTracker
+ *
+ * @brief Keeps the most recent latency samples in a ring buffer and
+ *        reports percentiles over them, e.g. to decide how long to
+ *        wait before hedging a slow download.
+ */
+public class LatencyTracker {
+    /**
+     * The most recent samples, in milliseconds.
+     */
+    private final long[] mSamples;
+
+    /**
+     * Index of the slot the next sample goes into.
+     */
+    private int mNext;
+
+    /**
+     * Number of slots filled so far.
+     */
+    private int mCount;
+
+    /**
+     * Keep the latest @a capacity samples.
+     */
+    public LatencyTracker(int capacity) {
+        mSamples = new long[capacity];
+    }
+
+    /**
+     * Record a latency of @a millis.
+     */
+    public synchronized void record(long millis) {
+        mSamples[mNext] = millis;
+        mNext = (mNext + 1) % mSamples.length;
+        if (mCount < mSamples.length)
+            mCount++;
+    }
+
+    /**
+     * Return the @a percentile (0-100) of the recorded samples, or @a
+     * defaultMillis if there are fewer than @a minSamples of them.
+     */
+    public long percentile(int percentile,
+                           int minSamples,
+                           long defaultMillis) {
+        long[] samples;
+        synchronized (this) {
+            if (mCount < Math.max(1, minSamples))
+                return defaultMillis;
+            samples = Arrays.copyOf(mSamples, mCount);
+        }
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(percentile / 100.0 * samples.length) - 1;
+        return samples[Math.max(0, Math.min(samples.length - 1, index))];
+    }
+}
@@ -0,0 +1,212 @@
+package vandy.mooc.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @class MicroBatcher
+ *
+ * @brief Gathers keys requested by concurrent callers over a short
+ *        window and fetches them with a single batch call.  The first
+ *        caller to arrive opens a batch and becomes its leader: while
+ *        other callers are fetching too it waits for the window to
+ *        pass, or for the batch to fill, and then runs the batch call
+ *        on its own thread while the other callers wait.  A caller
+ *        that arrives when no one else is fetching runs its batch at
+ *        once, so a lone lookup never waits out the window.  The
+ *        batch call hands each result to a Sink as soon as it has it,
+ *        which wakes the caller waiting for that key at once rather
+ *        than when the whole batch is done.
+ */
+public class MicroBatcher<V> {
+    /**
+     * Receives the results of a batch call, one key at a time.
+     */
+    public interface Sink<V> {
+        void deliver(String key, V value);
+    }
+
+    /**
+     * Fetches a batch of keys.
+     */
+    public interface BatchCall<V> {
+        /**
+         * Fetch @a keys before @a deadline, passing each result to @a
+         * sink.  Keys with no result are left out.
+         */
+        void call(Set<String> keys,
+                  Deadline deadline,
+                  Sink<V> sink) throws Exception;
+    }
+
+    /**
+     * A batch of keys and, once it has run, their results.  All
+     * fields are guarded by the MicroBatcher's monitor.
+     */
+    private class Batch implements Sink<V> {
+        final Set<String> mKeys = new LinkedHashSet<>();
+        final Map<String, V> mResults = new HashMap<>();
+        boolean mDone;
+        Exception mFailure;
+
+        @Override
+        public void deliver(String key, V value) {
+            synchronized (MicroBatcher.this) {
+                mResults.put(key, value);
+                MicroBatcher.this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Runs the batches.
+     */
+    private final BatchCall<V> mBatchCall;
+
+    /**
+     * How long the leader waits for more keys, in milliseconds.
+     */
+    private final long mWindowMillis;
+
+    /**
+     * Most keys in a batch.
+     */
+    private final int mMaxBatchSize;
+
+    /**
+     * Batch still accepting keys, or null if there is none.
+     */
+    private Batch mOpen;
+
+    /**
+     * Number of callers in fetch().
+     */
+    private int mCallers;
+
+    /**
+     * Number of batch calls made, and of keys fetched by them.
+     */
+    private final AtomicLong mBatches = new AtomicLong();
+    private final AtomicLong mKeys = new AtomicLong();
+
+    /**
+     * Gather keys for up to @a windowMillis, and at most @a
+     * maxBatchSize of them, into each call of @a batchCall.
+     */
+    public MicroBatcher(BatchCall<V> batchCall,
+                        long windowMillis,
+                        int maxBatchSize) {
+        mBatchCall = batchCall;
+        mWindowMillis = windowMillis;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Fetch @a key as part of a batch.
+     *
+     * @return the result, or null if the batch call had none for @a key
+     * @throws TimeoutException if @a deadline passed first
+     * @throws Exception whatever the batch call threw
+     */
+    public V fetch(String key, Deadline deadline) throws Exception {
+        Batch batch;
+        boolean leader = false;
+
+        synchronized (this) {
+            mCallers++;
+            if (mOpen == null) {
+                mOpen = new Batch();
+                leader = true;
+            }
+            batch = mOpen;
+            batch.mKeys.add(key);
+            if (batch.mKeys.size() >= mMaxBatchSize) {
+                // Full, so stop waiting for more keys.
+                mOpen = null;
+                notifyAll();
+            }
+
+            if (leader) {
+                // Other callers fetching now suggest more keys are on
+                // their way, but a lone caller doesn't wait for keys
+                // that may never come.  The other callers depend on
+                // the leader running the batch, so it does even if it
+                // is interrupted.
+                long windowEnd =
+                    System.nanoTime() + deadline.clamp(mWindowMillis) * 1000000L;
+                try {
+                    for (long remaining;
+                         mOpen == batch
+                             && mCallers > 1
+                             && (remaining = (windowEnd - System.nanoTime()) / 1000000L) > 0;)
+                        wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (mOpen == batch)
+                    mOpen = null;
+            }
+        }
+
+        try {
+            if (leader)
+                run(batch, deadline);
+
+            synchronized (this) {
+                while (!batch.mResults.containsKey(key) && !batch.mDone) {
+                    if (deadline.isExpired())
+                        throw new TimeoutException(Deadline.EXCEEDED_MESSAGE);
+                    wait(Math.max(1, Math.min(Integer.MAX_VALUE,
+                                              deadline.remainingMillis())));
+                }
+                if (batch.mResults.containsKey(key))
+                    return batch.mResults.get(key);
+                if (batch.mFailure != null)
+                    throw batch.mFailure;
+                return null;
+            }
+        } finally {
+            synchronized (this) {
+                // A leader may be waiting only because of this caller.
+                if (--mCallers == 1)
+                    notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Run the batch call for @a batch, whose keys can no longer
+     * change, and wake everyone waiting for it.
+     */
+    private void run(Batch batch, Deadline deadline) {
+        Exception failure = null;
+        try {
+            mBatches.incrementAndGet();
+            mKeys.addAndGet(batch.mKeys.size());
+            mBatchCall.call(Collections.unmodifiableSet(batch.mKeys),
+                            deadline,
+                            batch);
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            synchronized (this) {
+                batch.mDone = true;
+                batch.mFailure = failure;
+                notifyAll();
+            }
+        }
+    }
+
+    public long getBatchCount() {
+        return mBatches.get();
+    }
+
+    public long getBatchedKeyCount() {
+        return mKeys.get();
+    }
+}
@@ -0,0 +1,107 @@
+package vandy.mooc.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @class NegativeCache
+ *
+ * @brief Remembers, for a short time, the locations that the Weather
+ *        Service reported as unknown (cod 404), so that repeated
+ *        lookups of a mistyped location fail without touching the
+ *        network.  Like WeatherCache it is bounded, evicts in
+ *        least-recently-used order and is synchronized on itself.
+ */
+public class NegativeCache {
+    /**
+     * Default maximum number of unknown locations remembered.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    /**
+     * Default time an unknown location is remembered, in milliseconds.
+     */
+    public static final long DEFAULT_TTL_MILLIS = 30000;
+
+    /**
+     * Expiry time of each unknown location, in access order.
+     */
+    private final LinkedHashMap<String, Long> mExpiries;
+
+    /**
+     * Maximum number of entries held before eviction kicks in.
+     */
+    private final int mMaxEntries;
+
+    /**
+     * How long an unknown location is remembered.
+     */
+    private volatile long mTtlMillis;
+
+    /**
+     * Number of lookups answered from this cache.
+     */
+    private long mHits;
+
+    /**
+     * Create a negative cache holding at most @a maxEntries
+     * locations, each remembered for @a ttlMillis.
+     */
+    public NegativeCache(int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("maxEntries must be positive");
+
+        mMaxEntries = maxEntries;
+        mTtlMillis = ttlMillis;
+        mExpiries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * Create a negative cache with the default size and time-to-live.
+     */
+    public NegativeCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @return true if @a location is known to be unknown at @a
+     * nowMillis.
+     */
+    public synchronized boolean contains(String location, long nowMillis) {
+        String key = WeatherCache.normalize(location);
+        Long expiresAt = mExpiries.get(key);
+        if (expiresAt == null)
+            return false;
+        if (nowMillis >= expiresAt) {
+            mExpiries.remove(key);
+            return false;
+        }
+        mHits++;
+        return true;
+    }
+
+    /**
+     * Remember that @a location is unknown.
+     */
+    public synchronized void put(String location, long nowMillis) {
+        mExpiries.put(WeatherCache.normalize(location),
+                      nowMillis + mTtlMillis);
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        mTtlMillis = ttlMillis;
+    }
+
+    public synchronized int size() {
+        return mExpiries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+}
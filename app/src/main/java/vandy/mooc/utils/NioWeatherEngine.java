@@ -0,0 +1,1019 @@
+package vandy.mooc.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import vandy.mooc.jsonweather.WeatherByteParser;
+import vandy.mooc.jsonweather.WeatherListSink;
+import vandy.mooc.jsonweather.WeatherSink;
+
+import android.util.Log;
+
+/**
+ * @class NioWeatherEngine
+ *
+ * @brief Makes any number of downloads from the Weather Service on a
+ *        single I/O thread.  Each download's socket is a non-blocking
+ *        SocketChannel registered with one Selector, and each chunk
+ *        of a response is pushed into a WeatherByteParser as soon as
+ *        it arrives, so parsing overlaps with the transfer and no
+ *        thread sits blocked for each download in flight.  The
+ *        result is handed over as soon as the parser has what it
+ *        needs, usually before the body has been received in full.
+ *
+ *        Idle keep-alive connections are kept per host and reused,
+ *        and a response the parser stopped reading early is drained
+ *        or its connection closed, as WeatherHttpClient does.  A
+ *        request that fails on a reused connection before any of the
+ *        response arrives is retried once on a new one, since the
+ *        server may have closed the connection while it was idle.
+ *
+ *        Only plain HTTP/1.1 is spoken, and responses are requested
+ *        uncompressed so their bytes can go straight to the parser.
+ *        Host names are resolved on the calling thread, so the I/O
+ *        thread never blocks.
+ */
+public class NioWeatherEngine {
+    /**
+     * Logging tag used by the debugger.
+     */
+    private final static String TAG =
+        NioWeatherEngine.class.getCanonicalName();
+
+    /**
+     * Size of the buffer the I/O thread reads every socket through.
+     */
+    private final static int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Longest status line and headers accepted, in bytes.
+     */
+    private final static int MAX_HEAD_BYTES = 16 * 1024;
+
+    /**
+     * Most unread bytes drained from a response so that its
+     * connection can be reused; connections with more left are
+     * closed instead.
+     */
+    private final static int MAX_DRAIN_BYTES = 64 * 1024;
+
+    /**
+     * Most parsers kept for reuse by later downloads.
+     */
+    private final static int MAX_POOLED_PARSERS = 8;
+
+    private final static Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * How the end of a response body is found.
+     */
+    private final static int BODY_NONE = 0;
+    private final static int BODY_FIXED = 1;
+    private final static int BODY_CHUNKED = 2;
+    private final static int BODY_UNTIL_CLOSE = 3;
+
+    /**
+     * What the bytes of a chunked body being read are.
+     */
+    private final static int CHUNK_SIZE = 0;
+    private final static int CHUNK_EXTENSION = 1;
+    private final static int CHUNK_DATA = 2;
+    private final static int CHUNK_DATA_END = 3;
+    private final static int CHUNK_TRAILER = 4;
+
+    /**
+     * Decides, once the status and headers of a response are known,
+     * the sink its body is parsed into.  Called on the I/O thread, so
+     * it must not block.
+     */
+    public interface Handler<T extends WeatherSink> {
+        /**
+         * @return the sink for the body, which is parsed as a list if
+         * it is a WeatherListSink, and is the result of the download
+         * @throws IOException if the response is not usable
+         */
+        T onHead(WeatherTransport.Head head) throws IOException;
+    }
+
+    /**
+     * Receives the outcome of a download.  Called on the I/O thread,
+     * so it must not block.
+     */
+    public interface Callback<T extends WeatherSink> {
+        void onComplete(T result);
+
+        void onFailure(IOException e);
+    }
+
+    /**
+     * Idle connections kept per host.
+     */
+    private final int mMaxIdleConnections;
+
+    /**
+     * How long an idle connection is kept, in nanoseconds.
+     */
+    private final long mKeepAliveNanos;
+
+    /**
+     * How long a download may go without receiving anything, in
+     * nanoseconds, or Long.MAX_VALUE for no limit.
+     */
+    private final long mTimeoutNanos;
+
+    /**
+     * Downloads handed to the I/O thread but not yet started.
+     */
+    private final Queue<Fetch<?>> mPending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Downloads in progress, and idle connections by host.  Only used
+     * by the I/O thread.
+     */
+    private final Set<Fetch<?>> mActive = new HashSet<>();
+    private final Map<String, Deque<Connection>> mIdle = new HashMap<>();
+
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /**
+     * Parsers not in use by any download, kept so each response
+     * doesn't need a new one.  Only used by the I/O thread.
+     */
+    private final Deque<WeatherByteParser> mParsers = new ArrayDeque<>();
+
+    /**
+     * The selector and the I/O thread, started by the first download.
+     * Guarded by this.
+     */
+    private Selector mSelector;
+    private Thread mThread;
+    private boolean mShutdown;
+
+    /**
+     * Number of downloads started, and of those made on a reused
+     * connection.
+     */
+    private final AtomicLong mFetchCount = new AtomicLong();
+    private final AtomicLong mReusedCount = new AtomicLong();
+
+    /**
+     * Keep at most @a maxIdleConnections idle connections per host,
+     * for at most @a keepAliveMillis each, and fail downloads that
+     * receive nothing for @a timeoutMillis, unless it is 0.
+     */
+    public NioWeatherEngine(int maxIdleConnections,
+                            long keepAliveMillis,
+                            long timeoutMillis) {
+        mMaxIdleConnections = maxIdleConnections;
+        mKeepAliveNanos = keepAliveMillis * 1000000L;
+        mTimeoutNanos = timeoutMillis > 0
+            ? timeoutMillis * 1000000L
+            : Long.MAX_VALUE;
+    }
+
+    /**
+     * Send a GET request for @a url with the extra @a headers, and
+     * parse the response into the sink @a handler picks once its
+     * headers arrive, passing it to @a callback as soon as it has
+     * been parsed.  Returns at once.
+     *
+     * @throws IllegalStateException if @a deadline has passed
+     * @throws IOException if the request cannot be sent
+     */
+    public <T extends WeatherSink> void fetch(String url,
+                                              Map<String, String> headers,
+                                              Deadline deadline,
+                                              Handler<T> handler,
+                                              Callback<T> callback)
+        throws IOException {
+        start(new Fetch<>(new URL(url), headers, deadline, handler, callback));
+    }
+
+    /**
+     * Make the download fetch() does and wait for its result on the
+     * calling thread.  Interrupting the thread abandons the download.
+     *
+     * @return the sink @a handler picked, once it has been parsed
+     * @throws IllegalStateException if @a deadline has passed
+     * @throws IOException if the download failed
+     */
+    public <T extends WeatherSink> T fetchAndWait(String url,
+                                                  Map<String, String> headers,
+                                                  Deadline deadline,
+                                                  Handler<T> handler)
+        throws IOException {
+        Waiter<T> waiter = new Waiter<>();
+        Fetch<T> fetch =
+            new Fetch<>(new URL(url), headers, deadline, handler, waiter);
+        start(fetch);
+
+        try {
+            waiter.mDone.await();
+        } catch (InterruptedException e) {
+            fetch.cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download abandoned");
+        }
+        if (waiter.mFailure != null)
+            throw waiter.mFailure;
+        return waiter.mResult;
+    }
+
+    /**
+     * Stop the I/O thread, failing every download in progress and
+     * closing every connection.
+     */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        if (mSelector != null)
+            mSelector.wakeup();
+    }
+
+    public long getFetchCount() {
+        return mFetchCount.get();
+    }
+
+    public long getReusedConnectionCount() {
+        return mReusedCount.get();
+    }
+
+    /**
+     * Hand @a fetch to the I/O thread, starting it if needed.
+     */
+    private synchronized void start(Fetch<?> fetch) throws IOException {
+        if (mShutdown)
+            throw new IOException("Engine is shut down");
+        if (mSelector == null) {
+            mSelector = Selector.open();
+            mThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        loop();
+                    }
+                }, "NioWeatherEngine");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+        mFetchCount.incrementAndGet();
+        mPending.add(fetch);
+        mSelector.wakeup();
+    }
+
+    /**
+     * Body of the I/O thread.
+     */
+    private void loop() {
+        Selector selector;
+        synchronized (this) {
+            selector = mSelector;
+        }
+
+        try {
+            while (!isShutdown()) {
+                selector.select(nextTimeoutMillis());
+
+                for (Fetch<?> fetch; (fetch = mPending.poll()) != null;)
+                    connect(fetch, false);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid())
+                        handle(key);
+                }
+
+                sweep();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "I/O thread failed", e);
+        } finally {
+            synchronized (this) {
+                mShutdown = true;
+            }
+            IOException shutDown = new IOException("Engine is shut down");
+            for (Fetch<?> fetch : new ArrayList<>(mActive))
+                fetch.fail(shutDown);
+            for (Fetch<?> fetch; (fetch = mPending.poll()) != null;)
+                fetch.fail(shutDown);
+            for (Deque<Connection> idle : mIdle.values())
+                for (Connection connection : idle)
+                    connection.close();
+            mIdle.clear();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close the selector", e);
+            }
+        }
+    }
+
+    private synchronized boolean isShutdown() {
+        return mShutdown;
+    }
+
+    /**
+     * Start sending @a fetch, on an idle connection to its host if
+     * there is one and @a fresh is false, or else on a new one.
+     */
+    private void connect(Fetch<?> fetch, boolean fresh) {
+        if (fetch.mCancelled) {
+            fetch.fail(new InterruptedIOException("Download abandoned"));
+            return;
+        }
+        mActive.add(fetch);
+        fetch.mLastActivityNanos = System.nanoTime();
+
+        Connection connection = fresh ? null : takeIdle(fetch.mPoolKey);
+        if (connection != null) {
+            mReusedCount.incrementAndGet();
+            fetch.attach(connection, true);
+            connection.mKey.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            boolean connected = channel.connect(fetch.mAddress);
+            connection = new Connection(channel, fetch.mPoolKey);
+            connection.mKey =
+                channel.register(mSelector,
+                                 connected
+                                 ? SelectionKey.OP_WRITE
+                                 : SelectionKey.OP_CONNECT,
+                                 connection);
+            fetch.attach(connection, false);
+        } catch (IOException e) {
+            if (channel != null && connection == null)
+                closeQuietly(channel);
+            fetch.fail(e);
+        }
+    }
+
+    /**
+     * Carry on with the download whose socket @a key is ready.
+     */
+    private void handle(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        Fetch<?> fetch = connection.mFetch;
+        if (fetch == null) {
+            // An idle connection the server closed or wrote to.
+            removeIdle(connection);
+            connection.close();
+            return;
+        }
+
+        try {
+            if (key.isConnectable()) {
+                if (connection.mChannel.finishConnect())
+                    key.interestOps(SelectionKey.OP_WRITE);
+            } else if (key.isWritable()) {
+                fetch.write();
+            } else if (key.isReadable()) {
+                mReadBuffer.clear();
+                int count = connection.mChannel.read(mReadBuffer);
+                if (count == -1)
+                    fetch.onEndOfStream();
+                else if (count > 0)
+                    fetch.onBytes(mReadBuffer.array(), 0, count);
+            }
+        } catch (IOException e) {
+            fetch.onError(e);
+        } catch (RuntimeException e) {
+            // Thrown by a sink; the download cannot go on.
+            fetch.onError(new IOException(e));
+        }
+    }
+
+    /**
+     * Fail downloads that were abandoned or ran out of time, and
+     * close connections idle for too long.
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        for (Fetch<?> fetch : new ArrayList<>(mActive)) {
+            if (fetch.mCancelled)
+                fetch.fail(new InterruptedIOException("Download abandoned"));
+            else if (fetch.mDeadline.isExpired()
+                     || now - fetch.mLastActivityNanos >= mTimeoutNanos)
+                fetch.fail(new SocketTimeoutException("Read timed out"));
+        }
+
+        Iterator<Deque<Connection>> hosts = mIdle.values().iterator();
+        while (hosts.hasNext()) {
+            Deque<Connection> idle = hosts.next();
+            while (!idle.isEmpty()
+                   && now - idle.peekFirst().mIdleSinceNanos >= mKeepAliveNanos)
+                idle.pollFirst().close();
+            if (idle.isEmpty())
+                hosts.remove();
+        }
+    }
+
+    /**
+     * @return how long the selector may wait before a download runs
+     * out of time, in milliseconds, or 0 to wait until woken.
+     */
+    private long nextTimeoutMillis() {
+        if (mActive.isEmpty())
+            return mIdle.isEmpty() ? 0 : Math.max(1, mKeepAliveNanos / 1000000L);
+
+        long now = System.nanoTime();
+        long timeout = Long.MAX_VALUE;
+        for (Fetch<?> fetch : mActive) {
+            timeout = Math.min(timeout, fetch.mDeadline.remainingMillis());
+            timeout = Math.min(timeout,
+                               (mTimeoutNanos - (now - fetch.mLastActivityNanos))
+                               / 1000000L);
+        }
+        return Math.max(1, timeout);
+    }
+
+    /**
+     * @return the most recently used idle connection to @a poolKey,
+     * or null if there is none.
+     */
+    private Connection takeIdle(String poolKey) {
+        Deque<Connection> idle = mIdle.get(poolKey);
+        if (idle == null)
+            return null;
+        Connection connection = idle.pollLast();
+        if (idle.isEmpty())
+            mIdle.remove(poolKey);
+        return connection;
+    }
+
+    private void removeIdle(Connection connection) {
+        Deque<Connection> idle = mIdle.get(connection.mPoolKey);
+        if (idle != null) {
+            idle.remove(connection);
+            if (idle.isEmpty())
+                mIdle.remove(connection.mPoolKey);
+        }
+    }
+
+    /**
+     * Keep @a connection for reuse, or close it if its host has
+     * enough idle connections already.
+     */
+    private void release(Connection connection) {
+        connection.mFetch = null;
+        Deque<Connection> idle = mIdle.get(connection.mPoolKey);
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            mIdle.put(connection.mPoolKey, idle);
+        }
+        if (idle.size() >= mMaxIdleConnections) {
+            connection.close();
+            if (idle.isEmpty())
+                mIdle.remove(connection.mPoolKey);
+            return;
+        }
+        // Watch the idle connection, so that it is closed as soon as
+        // the server closes its end.
+        connection.mKey.interestOps(SelectionKey.OP_READ);
+        connection.mIdleSinceNanos = System.nanoTime();
+        idle.addLast(connection);
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to close connection: " + e);
+        }
+    }
+
+    /**
+     * A connection to a host and the download using it, if any.
+     */
+    private static class Connection {
+        final SocketChannel mChannel;
+        final String mPoolKey;
+        SelectionKey mKey;
+        Fetch<?> mFetch;
+        long mIdleSinceNanos;
+
+        Connection(SocketChannel channel, String poolKey) {
+            mChannel = channel;
+            mPoolKey = poolKey;
+        }
+
+        void close() {
+            if (mKey != null)
+                mKey.cancel();
+            closeQuietly(mChannel);
+        }
+    }
+
+    /**
+     * Callback that lets fetchAndWait() wait for the outcome.
+     */
+    private static class Waiter<T extends WeatherSink> implements Callback<T> {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile T mResult;
+        volatile IOException mFailure;
+
+        @Override
+        public void onComplete(T result) {
+            mResult = result;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            mFailure = e;
+            mDone.countDown();
+        }
+    }
+
+    /**
+     * One download.  Apart from mCancelled, only used by the I/O
+     * thread once started.
+     */
+    private class Fetch<T extends WeatherSink> implements WeatherTransport.Head {
+        final String mPoolKey;
+        final InetSocketAddress mAddress;
+        final ByteBuffer mRequest;
+        final Deadline mDeadline;
+        final Handler<T> mHandler;
+        final Callback<T> mCallback;
+
+        volatile boolean mCancelled;
+
+        Connection mConnection;
+        boolean mReused;
+        long mLastActivityNanos;
+        long mBytesReceived;
+
+        /**
+         * Status line and headers being received.
+         */
+        byte[] mHead = new byte[512];
+        int mHeadLength;
+        boolean mHeadDone;
+        int mStatusCode;
+        final Map<String, String> mHeaders = new HashMap<>();
+
+        /**
+         * Framing of the body, and how much of it is left.
+         */
+        int mBody;
+        long mRemaining;
+        int mChunkState;
+        boolean mChunkLineEmpty;
+        boolean mKeepAlive;
+
+        /**
+         * Whether any of the body has been received, and the parser
+         * that parses it into mResult.
+         */
+        boolean mBodyReceived;
+        WeatherByteParser mParser;
+        T mResult;
+
+        /**
+         * Whether the result has been handed to mCallback, the body
+         * bytes left unread since, and whether the download is over.
+         */
+        boolean mDelivered;
+        long mDrained;
+        boolean mFinished;
+
+        Fetch(URL url,
+              Map<String, String> headers,
+              Deadline deadline,
+              Handler<T> handler,
+              Callback<T> callback) throws IOException {
+            deadline.check();
+            if (!"http".equalsIgnoreCase(url.getProtocol()))
+                throw new IOException("Unsupported protocol " + url.getProtocol());
+
+            String host = url.getHost();
+            int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            mAddress = new InetSocketAddress(host, port);
+            if (mAddress.isUnresolved())
+                throw new UnknownHostException(host);
+            mPoolKey = host + ":" + port;
+            mDeadline = deadline;
+            mHandler = handler;
+            mCallback = callback;
+
+            String path = url.getFile();
+            StringBuilder request = new StringBuilder()
+                .append("GET ").append(path.isEmpty() ? "/" : path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(host);
+            if (url.getPort() != -1)
+                request.append(':').append(port);
+            request.append("\r\n")
+                .append("Connection: keep-alive\r\n")
+                .append("Accept-Encoding: identity\r\n");
+            for (Map.Entry<String, String> header : headers.entrySet())
+                request.append(header.getKey()).append(": ")
+                    .append(header.getValue()).append("\r\n");
+            request.append("\r\n");
+            mRequest = ByteBuffer.wrap(request.toString().getBytes(ISO_8859_1));
+        }
+
+        void cancel() {
+            mCancelled = true;
+            synchronized (NioWeatherEngine.this) {
+                if (mSelector != null)
+                    mSelector.wakeup();
+            }
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+
+        void attach(Connection connection, boolean reused) {
+            mConnection = connection;
+            mReused = reused;
+            connection.mFetch = this;
+        }
+
+        void write() throws IOException {
+            mConnection.mChannel.write(mRequest);
+            if (!mRequest.hasRemaining())
+                mConnection.mKey.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Process @a count bytes of the response from @a buffer,
+         * starting at @a offset.
+         */
+        void onBytes(byte[] buffer, int offset, int count) throws IOException {
+            mLastActivityNanos = System.nanoTime();
+            mBytesReceived += count;
+            int end = offset + count;
+
+            while (!mHeadDone && offset < end)
+                appendHead(buffer[offset++]);
+            if (!mHeadDone || mFinished)
+                return;
+
+            switch (mBody) {
+            case BODY_FIXED:
+                int length = (int) Math.min(end - offset, mRemaining);
+                mRemaining -= length;
+                onBody(buffer, offset, length);
+                if (mFinished)
+                    return;
+                if (offset + length < end)
+                    // More than the body; don't reuse the connection.
+                    mKeepAlive = false;
+                if (mRemaining == 0)
+                    onEndOfBody();
+                break;
+
+            case BODY_CHUNKED:
+                onChunked(buffer, offset, end);
+                break;
+
+            case BODY_UNTIL_CLOSE:
+                onBody(buffer, offset, end - offset);
+                break;
+            }
+        }
+
+        /**
+         * Add @a b to the status line and headers, and process them
+         * once they are complete.
+         */
+        private void appendHead(byte b) throws IOException {
+            if (mHeadLength == mHead.length) {
+                if (mHeadLength == MAX_HEAD_BYTES)
+                    throw new IOException("Response headers too long");
+                byte[] larger = new byte[Math.min(mHead.length * 2, MAX_HEAD_BYTES)];
+                System.arraycopy(mHead, 0, larger, 0, mHeadLength);
+                mHead = larger;
+            }
+            mHead[mHeadLength++] = b;
+
+            if (b == '\n'
+                && mHeadLength >= 4
+                && mHead[mHeadLength - 2] == '\r'
+                && mHead[mHeadLength - 3] == '\n'
+                && mHead[mHeadLength - 4] == '\r')
+                onHead();
+        }
+
+        /**
+         * Process the complete status line and headers.
+         */
+        private void onHead() throws IOException {
+            String[] lines =
+                new String(mHead, 0, mHeadLength - 4, ISO_8859_1).split("\r\n");
+            String[] status = lines[0].split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/"))
+                throw new IOException("Malformed status line " + lines[0]);
+            try {
+                mStatusCode = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed status line " + lines[0]);
+            }
+
+            mHeadLength = 0;
+            if (mStatusCode / 100 == 1)
+                // An interim response; the real one follows.
+                return;
+            mHeadDone = true;
+
+            mHeaders.clear();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0)
+                    continue;
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+                String value = lines[i].substring(colon + 1).trim();
+                String previous = mHeaders.get(name);
+                mHeaders.put(name, previous == null ? value : previous + ", " + value);
+            }
+
+            String contentEncoding = getHeader("Content-Encoding");
+            if (contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding))
+                throw new IOException("Unsupported Content-Encoding " + contentEncoding);
+
+            String transferEncoding = getHeader("Transfer-Encoding");
+            String contentLength = getHeader("Content-Length");
+            if (mStatusCode == 204 || mStatusCode == 304) {
+                mBody = BODY_NONE;
+            } else if (transferEncoding != null
+                       && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+                mBody = BODY_CHUNKED;
+                mChunkState = CHUNK_SIZE;
+                mRemaining = 0;
+            } else if (contentLength != null) {
+                mBody = BODY_FIXED;
+                try {
+                    mRemaining = Long.parseLong(contentLength);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed Content-Length " + contentLength);
+                }
+            } else {
+                mBody = BODY_UNTIL_CLOSE;
+            }
+            mKeepAlive = mBody != BODY_UNTIL_CLOSE
+                && status[0].equals("HTTP/1.1")
+                && !"close".equalsIgnoreCase(getHeader("Connection"));
+
+            mResult = mHandler.onHead(this);
+            if (mBody == BODY_NONE || (mBody == BODY_FIXED && mRemaining == 0)) {
+                // Nothing to parse, e.g. a 304 Not Modified.
+                onEndOfBody();
+                return;
+            }
+
+            mParser = mParsers.pollLast();
+            if (mParser == null)
+                mParser = new WeatherByteParser();
+            if (mResult instanceof WeatherListSink)
+                mParser.beginList((WeatherListSink) mResult);
+            else
+                mParser.begin(mResult);
+        }
+
+        /**
+         * Process the next bytes of a chunked body, from @a offset up
+         * to @a end of @a buffer.
+         */
+        private void onChunked(byte[] buffer, int offset, int end) throws IOException {
+            while (offset < end && !mFinished) {
+                byte b = buffer[offset];
+                switch (mChunkState) {
+                case CHUNK_SIZE:
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0) {
+                        if (mRemaining > (Long.MAX_VALUE >> 4))
+                            throw new IOException("Chunk too long");
+                        mRemaining = mRemaining * 16 + digit;
+                    } else if (b == ';') {
+                        mChunkState = CHUNK_EXTENSION;
+                    } else if (b == '\n') {
+                        onChunkSize();
+                    } else if (b != '\r' && b != ' ' && b != '\t') {
+                        throw new IOException("Malformed chunk size");
+                    }
+                    offset++;
+                    break;
+
+                case CHUNK_EXTENSION:
+                    if (b == '\n')
+                        onChunkSize();
+                    offset++;
+                    break;
+
+                case CHUNK_DATA:
+                    int length = (int) Math.min(end - offset, mRemaining);
+                    mRemaining -= length;
+                    onBody(buffer, offset, length);
+                    offset += length;
+                    if (mRemaining == 0)
+                        mChunkState = CHUNK_DATA_END;
+                    break;
+
+                case CHUNK_DATA_END:
+                    if (b == '\n')
+                        mChunkState = CHUNK_SIZE;
+                    else if (b != '\r')
+                        throw new IOException("Malformed chunk");
+                    offset++;
+                    break;
+
+                case CHUNK_TRAILER:
+                    if (b == '\n') {
+                        if (mChunkLineEmpty) {
+                            onEndOfBody();
+                        }
+                        mChunkLineEmpty = true;
+                    } else if (b != '\r') {
+                        mChunkLineEmpty = false;
+                    }
+                    offset++;
+                    break;
+                }
+            }
+        }
+
+        private void onChunkSize() {
+            if (mRemaining == 0) {
+                // The last chunk, followed by optional trailers.
+                mChunkState = CHUNK_TRAILER;
+                mChunkLineEmpty = true;
+            } else {
+                mChunkState = CHUNK_DATA;
+            }
+        }
+
+        /**
+         * Parse the next @a length bytes of the body from @a buffer,
+         * starting at @a offset, or drain them if the parser has
+         * stopped.
+         */
+        private void onBody(byte[] buffer, int offset, int length) throws IOException {
+            if (length > 0)
+                mBodyReceived = true;
+            if (!mDelivered) {
+                int consumed = mParser.feed(buffer, offset, length);
+                length -= consumed;
+                if (mParser.isDone()) {
+                    deliver();
+                    if (!isWorthDraining())
+                        close();
+                }
+            }
+
+            if (length > 0 && !mFinished) {
+                mDrained += length;
+                if (mDrained > MAX_DRAIN_BYTES)
+                    close();
+            }
+        }
+
+        /**
+         * @return true if the rest of a body the parser stopped
+         * reading should be drained so the connection can be reused.
+         */
+        private boolean isWorthDraining() {
+            return mKeepAlive
+                && mMaxIdleConnections > 0
+                && (mBody != BODY_FIXED || mRemaining <= MAX_DRAIN_BYTES);
+        }
+
+        /**
+         * The whole body has been received.
+         *
+         * @throws IOException if the body was empty but the status
+         * says it shouldn't be
+         */
+        private void onEndOfBody() throws IOException {
+            if (!mDelivered && !mBodyReceived)
+                onEmptyBody();
+            if (!mDelivered) {
+                fail(new IOException("Unexpected end of Json"));
+                return;
+            }
+            mFinished = true;
+            mActive.remove(this);
+            if (mKeepAlive && mMaxIdleConnections > 0)
+                release(mConnection);
+            else
+                mConnection.close();
+        }
+
+        /**
+         * Deliver the result of a response with an empty body, which
+         * has nothing to parse, if its status needs no body: a 204,
+         * a 304 Not Modified, or an error the handler accepted, such
+         * as a 404 for an unknown location.
+         *
+         * @throws IOException if a success status came with no body
+         */
+        private void onEmptyBody() throws IOException {
+            if (mStatusCode == 204
+                || mStatusCode == 304
+                || mStatusCode >= 400)
+                deliver();
+            else
+                throw new IOException("Weather Service answered "
+                                      + mStatusCode + " with an empty body");
+        }
+
+        void onEndOfStream() throws IOException {
+            if (mHeadDone && mBody == BODY_UNTIL_CLOSE) {
+                mKeepAlive = false;
+                onEndOfBody();
+            } else {
+                onError(new IOException("Unexpected end of stream"));
+            }
+        }
+
+        /**
+         * The connection failed with @a e.
+         */
+        void onError(IOException e) {
+            if (mReused && mBytesReceived == 0 && !mDelivered && !mFinished) {
+                // The server closed the idle connection; try again on
+                // a new one.
+                Log.d(TAG, "Retrying on a new connection after " + e);
+                mConnection.close();
+                mActive.remove(this);
+                mRequest.rewind();
+                connect(this, true);
+                return;
+            }
+            fail(e);
+        }
+
+        private void deliver() {
+            mDelivered = true;
+            releaseParser();
+            mCallback.onComplete(mResult);
+        }
+
+        /**
+         * Keep the parser for the next download, now that this one is
+         * done with it.
+         */
+        private void releaseParser() {
+            if (mParser == null)
+                return;
+            if (mParsers.size() < MAX_POOLED_PARSERS)
+                mParsers.addLast(mParser);
+            mParser = null;
+        }
+
+        /**
+         * End the download without reusing its connection, and pass
+         * @a e to the callback unless the result was delivered.
+         */
+        void fail(IOException e) {
+            if (mFinished)
+                return;
+            close();
+            if (!mDelivered) {
+                mDelivered = true;
+                mCallback.onFailure(e);
+            }
+        }
+
+        private void close() {
+            mFinished = true;
+            releaseParser();
+            mActive.remove(this);
+            if (mConnection != null)
+                mConnection.close();
+        }
+    }
+}
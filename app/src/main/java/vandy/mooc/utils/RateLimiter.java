@@ -0,0 +1,211 @@
+package vandy.mooc.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+import android.util.Log;
+
+/**
+ * @class RateLimiter
+ *
+ * @brief A token bucket that keeps the downloads of every process of
+ *        the app within the Weather Service's quota.  The bucket
+ *        holds up to @a burst tokens and refills at a steady rate,
+ *        and each download takes one token.  Its state lives in a
+ *        small file that is only read and written while holding a
+ *        FileLock, so WeatherServiceSync and WeatherServiceAsync draw
+ *        from the same bucket although they run in separate
+ *        processes.
+ *
+ *        When the bucket is empty, a caller either waits for a token
+ *        until its deadline or a maximum wait passes, or is rejected
+ *        at once, depending on the policy.  Rejected callers get an
+ *        IllegalStateException, which Binder passes back to the
+ *        client.
+ *
+ *        A process must create only one RateLimiter, since a file may
+ *        only be locked once per process at a time.
+ */
+public class RateLimiter {
+    /**
+     * Logging tag used by the debugger.
+     */
+    private final static String TAG = RateLimiter.class.getCanonicalName();
+
+    /**
+     * Name of the file holding the bucket's state.
+     */
+    private final static String FILE_NAME = "rate-limit";
+
+    /**
+     * Message of the exception thrown when a caller is rejected.
+     */
+    private final static String REJECTED_MESSAGE =
+        "Weather service quota exceeded, please try again";
+
+    /**
+     * File holding the bucket's state: the number of tokens as a
+     * double, followed by the time it was last refilled as a long.
+     */
+    private final File mFile;
+
+    /**
+     * Open state file, or null until first use.
+     */
+    private RandomAccessFile mState;
+
+    /**
+     * Tokens added per millisecond.
+     */
+    private final double mTokensPerMilli;
+
+    /**
+     * Most tokens the bucket holds.
+     */
+    private final double mBurst;
+
+    /**
+     * Whether callers wait for a token rather than being rejected.
+     */
+    private final boolean mQueue;
+
+    /**
+     * Longest a caller waits for a token, in milliseconds.
+     */
+    private final long mMaxWaitMillis;
+
+    /**
+     * Number of callers rejected so far by this process.
+     */
+    private long mRejected;
+
+    /**
+     * Create a bucket whose state lives in @a directory, allowing @a
+     * permitsPerMinute downloads a minute in bursts of up to @a
+     * burst.  If @a queue is true, callers wait up to @a
+     * maxWaitMillis for a token, otherwise they are rejected at once.
+     */
+    public RateLimiter(File directory,
+                       int permitsPerMinute,
+                       int burst,
+                       boolean queue,
+                       long maxWaitMillis) {
+        mFile = new File(directory, FILE_NAME);
+        mTokensPerMilli = permitsPerMinute / 60000.0;
+        mBurst = Math.max(1, burst);
+        mQueue = queue;
+        mMaxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Take a token, waiting for one as the policy allows, but never
+     * past @a deadline.  If the state file can't be used the token is
+     * granted, since the quota is better exceeded than every lookup
+     * failed.
+     *
+     * @throws IllegalStateException if no token could be had, or if
+     * @a deadline has passed
+     */
+    public void acquire(Deadline deadline) {
+        deadline.check();
+        long maxWaitMillis = mQueue ? deadline.clamp(mMaxWaitMillis) : 0;
+        long waitEndNanos = System.nanoTime() + maxWaitMillis * 1000000L;
+
+        for (;;) {
+            long waitMillis = take();
+            if (waitMillis == 0)
+                return;
+
+            // A wait of 0, whether configured or all the deadline
+            // leaves, means the caller is rejected at once.
+            long remainingMillis = (waitEndNanos - System.nanoTime()) / 1000000L;
+            if (waitMillis > remainingMillis)
+                break;
+
+            try {
+                Thread.sleep(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        synchronized (this) {
+            mRejected++;
+        }
+        Log.d(TAG, "No token available, rejecting download");
+        throw new IllegalStateException(REJECTED_MESSAGE);
+    }
+
+    /**
+     * Take a token if one is available right away.
+     *
+     * @return true if a token was taken
+     */
+    public boolean tryAcquire() {
+        return take() == 0;
+    }
+
+    /**
+     * Take a token if there is one.
+     *
+     * @return 0 if a token was taken, otherwise how many milliseconds
+     * until there will be one
+     */
+    private synchronized long take() {
+        FileLock lock = null;
+        try {
+            if (mState == null)
+                mState = new RandomAccessFile(mFile, "rw");
+            lock = mState.getChannel().lock();
+
+            long now = System.currentTimeMillis();
+            double tokens = mBurst;
+            long refilledAt = now;
+            if (mState.length() >= 16) {
+                mState.seek(0);
+                tokens = mState.readDouble();
+                refilledAt = mState.readLong();
+            }
+
+            // Ignore time going backwards, and a burst setting that
+            // shrank since the state was written.
+            long elapsed = Math.max(0, now - refilledAt);
+            tokens = Math.min(mBurst, tokens + elapsed * mTokensPerMilli);
+
+            long waitMillis = 0;
+            if (tokens >= 1)
+                tokens -= 1;
+            else
+                waitMillis = Math.max(1, (long) Math.ceil((1 - tokens) / mTokensPerMilli));
+
+            mState.seek(0);
+            mState.writeDouble(tokens);
+            mState.writeLong(now);
+            return waitMillis;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to use " + mFile, e);
+            return 0;
+        } catch (OverlappingFileLockException e) {
+            // Another bucket in this process holds the lock, which
+            // only happens if the process made more than one.
+            Log.e(TAG, "Unable to lock " + mFile, e);
+            return 0;
+        } finally {
+            if (lock != null) {
+                try {
+                    lock.release();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to unlock " + mFile, e);
+                }
+            }
+        }
+    }
+
+    public synchronized long getRejectedCount() {
+        return mRejected;
+    }
+}
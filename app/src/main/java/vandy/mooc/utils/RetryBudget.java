@@ -0,0 +1,56 @@
+package vandy.mooc.utils;
+
+/**
+ * @class RetryBudget
+ *
+ * @brief Limits extra attempts (retries or hedges) to a fraction of
+ *        the original requests.  Every request deposits @a ratio of a
+ *        token and every extra attempt withdraws a whole one, so when
+ *        the upstream is down and every request is slow, the extra
+ *        load stays bounded at @a ratio instead of doubling it.  The
+ *        balance is capped so that a long quiet spell cannot save up
+ *        a burst.
+ */
+public class RetryBudget {
+    /**
+     * Fraction of a token each request deposits.
+     */
+    private final double mRatio;
+
+    /**
+     * Largest balance the budget can hold.
+     */
+    private final double mMaxTokens;
+
+    /**
+     * Current balance.
+     */
+    private double mTokens;
+
+    /**
+     * Allow extra attempts for @a ratio of requests, saving up at
+     * most @a maxTokens of them.
+     */
+    public RetryBudget(double ratio, double maxTokens) {
+        mRatio = ratio;
+        mMaxTokens = maxTokens;
+        mTokens = maxTokens;
+    }
+
+    /**
+     * Record a request.
+     */
+    public synchronized void deposit() {
+        mTokens = Math.min(mMaxTokens, mTokens + mRatio);
+    }
+
+    /**
+     * @return true, spending a token, if an extra attempt is allowed.
+     */
+    public synchronized boolean tryWithdraw() {
+        if (mTokens < 1)
+            return false;
+        mTokens -= 1;
+        return true;
+    }
+}
@@ -0,0 +1,153 @@
+package vandy.mooc.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @class SingleFlight
+ *
+ * @brief Coalesces concurrent calls that share a key, so only one of
+ *        them does the work while the others wait for and share its
+ *        result.  The first caller for a key runs the Callable on its
+ *        own thread; callers that arrive while it is running block on
+ *        the same FutureTask.  Once the call completes the key is
+ *        released, so later callers start a new call.
+ *
+ *        A caller with a timeout doesn't run the call itself but
+ *        hands it to an Executor, so that every caller, including
+ *        the one that started the call, stops waiting at its own
+ *        timeout while the call runs on for the callers still
+ *        waiting.
+ */
+public class SingleFlight<V> {
+    /**
+     * Runs calls started by callers with a timeout.
+     */
+    private final Executor mExecutor;
+
+    /**
+     * Calls currently in progress, keyed by their key.
+     */
+    private final ConcurrentMap<String, FutureTask<V>> mCalls =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Number of calls that were actually executed.
+     */
+    private final AtomicLong mExecuted = new AtomicLong();
+
+    /**
+     * Number of calls that were satisfied by another call in flight.
+     */
+    private final AtomicLong mShared = new AtomicLong();
+
+    /**
+     * Create a SingleFlight that runs every call on the thread of the
+     * caller that starts it.
+     */
+    public SingleFlight() {
+        this(null);
+    }
+
+    /**
+     * Create a SingleFlight that runs calls started by callers with a
+     * timeout on @a executor, or on the caller's thread if @a
+     * executor is null or rejects them.
+     */
+    public SingleFlight(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Run @a callable for @a key unless a call for the same key is
+     * already in flight, in which case wait for that call instead.
+     *
+     * @return the result of the call
+     * @throws Exception whatever the call threw
+     */
+    public V execute(String key, Callable<V> callable) throws Exception {
+        return execute(key, callable, Long.MAX_VALUE);
+    }
+
+    /**
+     * Run @a callable for @a key unless a call for the same key is
+     * already in flight, in which case wait for that call instead,
+     * and wait at most @a timeoutMillis for the result either way.
+     * The call itself isn't bounded by @a timeoutMillis, so other
+     * callers waiting for it longer still get its result.
+     *
+     * @return the result of the call
+     * @throws TimeoutException if the call didn't finish in time
+     * @throws Exception whatever the call threw
+     */
+    public V execute(final String key,
+                     Callable<V> callable,
+                     long timeoutMillis) throws Exception {
+        final FutureTask<V> task = new FutureTask<>(callable);
+        FutureTask<V> inFlight = mCalls.putIfAbsent(key, task);
+
+        if (inFlight != null) {
+            mShared.incrementAndGet();
+            return getResult(inFlight, timeoutMillis);
+        }
+
+        mExecuted.incrementAndGet();
+        Runnable call = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        mCalls.remove(key, task);
+                    }
+                }
+            };
+
+        if (timeoutMillis == Long.MAX_VALUE || mExecutor == null) {
+            call.run();
+            return getResult(task, Long.MAX_VALUE);
+        }
+
+        try {
+            mExecutor.execute(call);
+        } catch (RejectedExecutionException e) {
+            call.run();
+        }
+        return getResult(task, timeoutMillis);
+    }
+
+    /**
+     * Wait up to @a timeoutMillis for @a task and unwrap any
+     * exception it threw.
+     */
+    private V getResult(FutureTask<V> task,
+                        long timeoutMillis) throws Exception {
+        try {
+            return timeoutMillis == Long.MAX_VALUE
+                ? task.get()
+                : task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw e;
+        }
+    }
+
+    public long getExecutedCount() {
+        return mExecuted.get();
+    }
+
+    public long getSharedCount() {
+        return mShared.get();
+    }
+}
@@ -1,17 +1,31 @@
 package vandy.mooc.utils;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import vandy.mooc.R;
 import vandy.mooc.aidl.WeatherData;
-import vandy.mooc.jsonweather.WeatherJSONParser;
-import vandy.mooc.jsonweather.JsonWeather;
+import vandy.mooc.jsonweather.WeatherByteParser;
 import android.app.Activity;
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.content.res.Resources;
 import android.os.IBinder;
 import android.util.Log;
 import android.view.inputmethod.InputMethodManager;
@@ -29,7 +43,123 @@ public class Utils {
      */
     private final static String TAG = Utils.class.getCanonicalName();
 
-    private final static String MY_PREFERENCES_NAME = "vandy.mooc.cache";
+    /**
+     * In-memory cache of WeatherData keyed by location, shared by the
+     * Binder threads of whichever service runs in this process.
+     */
+    private final static WeatherCache sWeatherCache = new WeatherCache();
+
+    /**
+     * Short-lived cache of locations the Weather Service reported as
+     * unknown.
+     */
+    private final static NegativeCache sNegativeCache = new NegativeCache();
+
+    /**
+     * Persistent cache of WeatherData keyed by location, created on
+     * first use since it needs a Context to find its directory.
+     */
+    private static WeatherDiskCache sDiskCache;
+
+    /**
+     * Fetches currently in progress, so that concurrent lookups for
+     * the same location open only one connection.
+     */
+    private final static SingleFlight<WeatherData> sInFlight =
+        new SingleFlight<>(new ThreadPoolExecutor(0,
+                                                  8,
+                                                  30,
+                                                  TimeUnit.SECONDS,
+                                                  new SynchronousQueue<Runnable>()));
+
+    /**
+     * Locks that stop both service processes from downloading the
+     * same location at once, created on first use.
+     */
+    private static CrossProcessLocks sFetchLocks;
+
+    /**
+     * Directory, inside the cache directory, holding the lock files.
+     */
+    private final static String FETCH_LOCKS_DIRECTORY = "fetch-locks";
+
+    /**
+     * How long to wait for another process's download of the same
+     * location before downloading it ourselves.
+     */
+    private final static long FETCH_LOCK_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Small bounded pool that refreshes stale entries in the
+     * background.  Refreshes that don't fit in the queue are dropped,
+     * since the next lookup of a stale entry will schedule another.
+     */
+    private final static ThreadPoolExecutor sRefreshExecutor =
+        new ThreadPoolExecutor(2,
+                               2,
+                               30,
+                               TimeUnit.SECONDS,
+                               new LinkedBlockingQueue<Runnable>(32),
+                               new ThreadPoolExecutor.DiscardPolicy());
+
+    static {
+        sRefreshExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Threads that run hedged downloads.  Downloads that find no free
+     * thread run unhedged on the caller's thread.
+     */
+    private final static ThreadPoolExecutor sHedgeExecutor =
+        new ThreadPoolExecutor(0,
+                               8,
+                               30,
+                               TimeUnit.SECONDS,
+                               new SynchronousQueue<Runnable>());
+
+    /**
+     * Most hedges the retry budget saves up during a quiet spell.
+     */
+    private final static int HEDGE_BUDGET_MAX_TOKENS = 10;
+
+    /**
+     * Number of recent download latencies the hedge delay is taken
+     * from.
+     */
+    private final static int HEDGE_LATENCY_SAMPLES = 128;
+
+    /**
+     * Hedges slow downloads, or null if hedging is turned off.
+     */
+    private static volatile Hedger sHedger;
+
+    /**
+     * Stops downloads while the Weather Service is failing, so
+     * lookups fail at once instead of tying up a thread until the
+     * download times out.  Replaced with the configured breaker by
+     * configure().
+     */
+    private static volatile CircuitBreaker sBreaker =
+        new CircuitBreaker(20, 5, 50, 5000, 30000);
+
+    /**
+     * Keeps the downloads of both service processes within the
+     * Weather Service's quota, or null if there is no limit.
+     */
+    private static volatile RateLimiter sRateLimiter;
+
+    /**
+     * Value of the weather_rate_limit_policy resource that makes
+     * downloads wait for a token rather than be rejected.
+     */
+    private final static String RATE_LIMIT_POLICY_QUEUE = "queue";
+
+    /**
+     * Message of the exception thrown when the Weather Service cannot
+     * be reached and there is no old value to serve instead.
+     */
+    private final static String UNAVAILABLE_MESSAGE =
+        "Weather service is unavailable, please try again later";
 
     /** 
      * URL to the Acronym web service.
@@ -38,110 +168,856 @@ public class Utils {
         "http://api.openweathermap.org/data/2.5/weather?q=";
 
     /**
-     * Obtain the Weather info given the location
+     * URL of the group endpoint, which takes a comma separated list
+     * of city ids.
+     */
+    private final static String WEATHER_GROUP_SEARCH_URL =
+        "http://api.openweathermap.org/data/2.5/group?id=";
+
+    /**
+     * Value of the weather_transport resource that answers downloads
+     * from a FakeWeatherTransport serving res/raw/sample.json.
+     */
+    private final static String TRANSPORT_FAKE = "fake";
+
+    /**
+     * Value of the weather_transport resource that makes downloads
+     * on the non-blocking NioWeatherEngine.
+     */
+    private final static String TRANSPORT_NIO = "nio";
+
+    /**
+     * Byte level parser of each thread that downloads, reused for
+     * every response so parsing allocates almost nothing.
+     */
+    private final static ThreadLocal<WeatherByteParser> sParsers =
+        new ThreadLocal<WeatherByteParser>() {
+            @Override
+            protected WeatherByteParser initialValue() {
+                return new WeatherByteParser();
+            }
+        };
+
+    /**
+     * The transport every download goes through.
+     */
+    private static volatile WeatherTransport sTransport =
+        new HttpWeatherTransport();
+
+    /**
+     * Engine that makes every download instead of sTransport, parsing
+     * each response on its I/O thread as it arrives, or null if
+     * downloads go through sTransport.
+     */
+    private static volatile NioWeatherEngine sEngine;
+
+    /**
+     * Most city ids remembered.
+     */
+    private final static int MAX_CITY_IDS = 256;
+
+    /**
+     * City ids the Weather Service reported for recently looked up
+     * locations, keyed by normalized location.  The group endpoint
+     * only takes city ids, so only locations found here are batched.
+     */
+    private final static Map<String, Long> sCityIds =
+        Collections.synchronizedMap(new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > MAX_CITY_IDS;
+                }
+            });
+
+    /**
+     * Gathers downloads of locations with known city ids into group
+     * downloads, or null if batching is turned off.
+     */
+    private static volatile MicroBatcher<WeatherResponse> sBatcher;
+
+    /**
+     * Runs the group downloads of sBatcher.
+     */
+    private final static MicroBatcher.BatchCall<WeatherResponse> sGroupCall =
+        new MicroBatcher.BatchCall<WeatherResponse>() {
+            @Override
+            public void call(Set<String> cityIds,
+                             Deadline deadline,
+                             MicroBatcher.Sink<WeatherResponse> sink)
+                throws IOException {
+                downloadGroup(cityIds, deadline, sink);
+            }
+        };
+
+    /**
+     * Callback used to deliver weather data that was refreshed in the
+     * background after a stale value was returned to the caller.
+     */
+    public interface OnRefreshListener {
+        void onRefreshed(WeatherData weatherData);
+    }
+
+    /**
+     * Obtain the Weather info given the location.  Concurrent lookups
+     * for the same location share a single fetch.
      *
      * @param location location for the search
      * @return list of weather data
      */
-    public static WeatherData getResult(final String location, Context context) {
-        // Create a List that will return the AcronymData obtained
-        // from the Weather Service web service.
-        WeatherData weatherData = null;
-            
-        // JsonWeather object
-        JsonWeather jsonWeather = null;
-
-        long cachedTimeStamp = getCacheWeatherDataTimeStamp(location, context);
-        if (currentTimeWithinRefreshRate(cachedTimeStamp, System.currentTimeMillis())) {
-            return readCachedWeatherData(context);
-        } else {
+    public static WeatherData getResult(final String location,
+                                        final Context context) {
+        return getResult(location, context, null);
+    }
+
+    /**
+     * Obtain the Weather info given the location.  If only a stale
+     * value within the stale-while-revalidate window is cached, it is
+     * returned at once and refreshed in the background, and @a
+     * listener (if not null) receives the refreshed value.
+     *
+     * @param location location for the search
+     * @param context app context
+     * @param listener receives background refreshes, may be null
+     * @return weather data, or null if the location is unknown
+     */
+    public static WeatherData getResult(final String location,
+                                        final Context context,
+                                        final OnRefreshListener listener) {
+        return getResult(location, context, listener, null);
+    }
+
+    /**
+     * Obtain the Weather info given the location, as above.  Lookups
+     * that cannot be answered from a cache must first be admitted by
+     * @a admission (if not null), so cache hits never wait for it.
+     *
+     * @param location location for the search
+     * @param context app context
+     * @param listener receives background refreshes, may be null
+     * @param admission limits concurrent downloads, may be null
+     * @return weather data, or null if the location is unknown
+     * @throws IllegalStateException if @a admission rejects the lookup
+     */
+    public static WeatherData getResult(final String location,
+                                        final Context context,
+                                        final OnRefreshListener listener,
+                                        final AdmissionController admission) {
+        return getResult(location, context, listener, admission, Deadline.NONE);
+    }
+
+    /**
+     * Obtain the Weather info given the location, as above, giving up
+     * once @a deadline passes.  The deadline bounds the wait for
+     * admission, for a fetch of the same location already in flight
+     * and for the other process's download, and cuts short the
+     * download's connect and read timeouts.
+     *
+     * @param location location for the search
+     * @param context app context
+     * @param listener receives background refreshes, may be null
+     * @param admission limits concurrent downloads, may be null
+     * @param deadline time by which the lookup must finish
+     * @return weather data, or null if the location is unknown
+     * @throws IllegalStateException if @a admission rejects the
+     * lookup or the deadline passes
+     */
+    public static WeatherData getResult(final String location,
+                                        final Context context,
+                                        final OnRefreshListener listener,
+                                        final AdmissionController admission,
+                                        final Deadline deadline) {
+        WeatherData weatherData =
+            sWeatherCache.get(location, getCurrentTimeInMilliSeconds());
+        if (weatherData != null) {
+            Log.d(TAG, "Read data from memory cache: " + sWeatherCache);
+            return weatherData;
+        }
+
+        if (sNegativeCache.contains(location, getCurrentTimeInMilliSeconds())) {
+            Log.d(TAG, "Location " + location + " is known to be unknown");
+            return null;
+        }
+
+        WeatherCache.Entry staleEntry = getStaleEntry(location, context);
+        if (staleEntry != null) {
+            Log.d(TAG, "Serving stale data for " + location + " while refreshing");
+            refreshInBackground(location, context, listener);
+            return staleEntry.mWeatherData;
+        }
+
+        // Fail at once, without queueing, while the Weather Service
+        // is known to be failing.
+        if (sBreaker.isRejecting(getCurrentTimeInMilliSeconds()))
+            return serveLastKnown(location, context);
+
+        if (admission != null)
+            admission.acquire(deadline);
+        try {
+            return fetchCoalesced(location, context, deadline);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(Deadline.EXCEEDED_MESSAGE);
+        } catch (Exception e) {
+            Log.e(TAG, "Lookup for " + location + " failed", e);
+            return null;
+        } finally {
+            if (admission != null)
+                admission.release();
+        }
+    }
+
+    /**
+     * Fetch the Weather info for the location, sharing the fetch with
+     * any other thread that is already fetching the same location.
+     */
+    private static WeatherData fetchCoalesced(final String location,
+                                              final Context context)
+        throws Exception {
+        return fetchCoalesced(location, context, Deadline.NONE);
+    }
+
+    /**
+     * Fetch the Weather info for the location as above, giving up
+     * once @a deadline passes.  The caller that starts the fetch
+     * bounds it with its own deadline, which cuts short the
+     * download's connect and read timeouts.  A caller that joined
+     * that fetch and still has time left when it runs out of the
+     * other caller's time starts a fetch of its own, so no caller
+     * times out early because of another's deadline.
+     *
+     * @throws TimeoutException if the fetch didn't finish before @a
+     * deadline
+     * @throws IllegalStateException if @a deadline passes during the
+     * fetch
+     */
+    private static WeatherData fetchCoalesced(final String location,
+                                              final Context context,
+                                              final Deadline deadline)
+        throws Exception {
+        for (;;) {
             try {
-                // Append the location to create the full URL.
-                final URL url =
-                        new URL(WEATHER_DATA_SEARCH_URL
-                                + location);
-
-                // Opens a connection to the Acronym Service.
-                HttpURLConnection urlConnection =
-                        (HttpURLConnection) url.openConnection();
-
-                // Sends the GET request and reads the Json results.
-                try (InputStream in =
-                             new BufferedInputStream(urlConnection.getInputStream())) {
-                    // Create the parser.
-                    final WeatherJSONParser parser =
-                            new WeatherJSONParser();
-
-                    // Parse the Json results and create JsonWeather data
-                    // objects.
-                    jsonWeather = parser.parseJsonStream(in);
-                } finally {
-                    urlConnection.disconnect();
+                return sInFlight.execute(WeatherCache.normalize(location),
+                                         new Callable<WeatherData>() {
+                        @Override
+                        public WeatherData call() {
+                            return fetchWeatherData(location, context, deadline);
+                        }
+                    },
+                    deadline.remainingMillis());
+            } catch (IllegalStateException e) {
+                if (deadline.isExpired()
+                    || !Deadline.EXCEEDED_MESSAGE.equals(e.getMessage()))
+                    throw e;
+                Log.d(TAG, "Shared fetch of " + location
+                      + " ran out of time, fetching again");
+            }
+        }
+    }
+
+    /**
+     * Return the expired entry for the location from the memory or
+     * disk cache if it may still be served stale, or null if there is
+     * none or stale-while-revalidate is disabled.
+     */
+    private static WeatherCache.Entry getStaleEntry(String location,
+                                                    Context context) {
+        long maxStaleMillis = sWeatherCache.getMaxStaleMillis();
+        if (maxStaleMillis <= 0)
+            return null;
+
+        long now = getCurrentTimeInMilliSeconds();
+        WeatherCache.Entry entry = sWeatherCache.getStale(location, now);
+        if (entry != null)
+            return entry;
+
+        entry = getDiskCache(context).get(location);
+        if (entry != null && entry.isServableStale(now, maxStaleMillis)) {
+            sWeatherCache.put(location, entry);
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Refresh the Weather info for the location on a background
+     * thread and hand the result to @a listener.
+     */
+    private static void refreshInBackground(final String location,
+                                            final Context context,
+                                            final OnRefreshListener listener) {
+        sRefreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        WeatherData weatherData =
+                            fetchCoalesced(location, context);
+                        if (weatherData != null
+                            && !weatherData.isStale()
+                            && listener != null)
+                            listener.onRefreshed(weatherData);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Background refresh of " + location + " failed", e);
+                    }
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+            });
+    }
+
+    /**
+     * Obtain the Weather info for the location from the disk cache or,
+     * failing that, from the Weather Service web service.  Only one
+     * thread per location runs this at a time, and only one process
+     * downloads a location at a time: a process that finds another
+     * process downloading the same location waits for it and then
+     * reads its result from the disk cache.
+     *
+     * @param location location for the search
+     * @param context app context
+     * @param deadline time by which the fetch must finish
+     * @return weather data, or null if the location is unknown
+     */
+    private static WeatherData fetchWeatherData(final String location,
+                                                Context context,
+                                                Deadline deadline) {
+        // A fetch for this location may have completed between the
+        // caller's cache lookup and the start of this call.
+        WeatherData weatherData =
+            sWeatherCache.get(location, getCurrentTimeInMilliSeconds());
+        if (weatherData != null)
+            return weatherData;
+
+        weatherData = readFreshFromDisk(location, context);
+        if (weatherData != null)
+            return weatherData;
+
+        CrossProcessLocks.Lock fetchLock =
+            getFetchLocks(context).acquire(WeatherCache.normalize(location),
+                                           deadline.clamp(FETCH_LOCK_TIMEOUT_MILLIS));
+        try {
+            // The other process may have downloaded this location
+            // while we waited for the lock.
+            WeatherCache.Entry previous = getDiskCache(context).get(location);
+            if (fetchLock != null
+                && previous != null
+                && previous.isFresh(getCurrentTimeInMilliSeconds())) {
+                sWeatherCache.put(location, previous);
+                return previous.mWeatherData;
             }
 
-            if (jsonWeather.getmCod() == 404) {
+            // The expired entry decides how long the new data is kept
+            // for if it turns out unchanged, and is revalidated with a
+            // conditional GET rather than downloaded again if it can
+            // be.
+            if (previous == null)
+                previous = sWeatherCache.peek(location);
+            WeatherCache.Entry revalidate =
+                previous != null && previous.hasValidator() ? previous : null;
 
+            // A location whose city id is known shares a group
+            // download with the other lookups made at about the same
+            // time, and gets its result as soon as its city has been
+            // parsed rather than when the whole group has.  The group
+            // endpoint has no validators per city, so an entry that
+            // has them is revalidated on its own instead, which keeps
+            // them.
+            WeatherResponse batched = revalidate == null
+                ? fetchBatched(location, deadline)
+                : null;
+            if (batched != null) {
+                weatherData = batched.mWeatherData;
+                storeEntry(location,
+                           newEntry(weatherData,
+                                    batched.getDt(),
+                                    batched.mFreshnessMillis,
+                                    previous,
+                                    null,
+                                    null),
+                           context,
+                           fetchLock);
+                fetchLock = null;
+                return weatherData;
+            }
+
+            // Only downloads take tokens, never cache hits, lookups
+            // that share another's download or calls the breaker
+            // refuses.
+            if (!sBreaker.allowRequest(getCurrentTimeInMilliSeconds()))
+                return serveLastKnown(location, context);
+            acquireToken(deadline);
+
+            WeatherResponse response = null;
+            long start = System.nanoTime();
+            try {
+                response = downloadHedged(location, revalidate, deadline);
+            } finally {
+                // A download cut short by the caller's own deadline
+                // says nothing about the Weather Service's health.
+                if (response != null)
+                    sBreaker.onSuccess((System.nanoTime() - start) / 1000000L,
+                                       getCurrentTimeInMilliSeconds());
+                else if (deadline.isExpired())
+                    sBreaker.onCancelled();
+                else
+                    sBreaker.onFailure(getCurrentTimeInMilliSeconds());
+            }
+
+            // The download failed, so fall back to whatever is known.
+            if (response == null) {
+                deadline.check();
+                return serveLastKnown(location, context);
+            }
+
+            long now = getCurrentTimeInMilliSeconds();
+            WeatherCache.Entry entry;
+
+            if (response.isNotModified()) {
+                // The cached copy is still current, so just extend its
+                // lifetime without parsing anything.
+                Log.d(TAG, "Revalidated cached data for " + location);
+                entry = revalidate.revalidated
+                    (now,
+                     now + sWeatherCache.adaptiveTtlMillis(now,
+                                                           revalidate.mObservedAt,
+                                                           response.mFreshnessMillis,
+                                                           revalidate,
+                                                           true));
+                weatherData = entry.mWeatherData;
+            } else if (response.isNotFound()) {
+                // Remember the unknown location for a short while.
+                sNegativeCache.put(location, now);
                 return null;
             } else {
-                // cache the weather data (json weather data)
-                cacheWeatherData(jsonWeather, location, context);
-
-                // Convert the JsonWeather data object to the WeatherData object
-                // so that it can be passed along address spaces
-                weatherData = new WeatherData(jsonWeather.getmName(),
-                        jsonWeather.getmSpeed(), jsonWeather.getmDeg(),
-                        jsonWeather.getmTemp(), jsonWeather.getmHumidity(),
-                        jsonWeather.getmSunrise(), jsonWeather.getmSunset());
-                return weatherData;
+                rememberCityId(location, response.getId());
+
+                // The body was parsed straight into the WeatherData
+                // object that is passed along address spaces.
+                weatherData = response.mWeatherData;
+                entry = newEntry(weatherData,
+                                 response.getDt(),
+                                 response.mFreshnessMillis,
+                                 previous,
+                                 response.mETag,
+                                 response.mLastModified);
             }
+
+            storeEntry(location, entry, context, fetchLock);
+            fetchLock = null;
+            return weatherData;
+        } finally {
+            if (fetchLock != null)
+                fetchLock.release();
         }
     }
 
     /**
-     * Cache the weather data using Shared Preferences.
+     * Cache @a entry for the location in memory and on disk, and then
+     * release @a fetchLock (if not null).  The lock is released once
+     * the record is on disk, so a process waiting on it is sure to
+     * find it.
+     */
+    private static void storeEntry(String location,
+                                   WeatherCache.Entry entry,
+                                   Context context,
+                                   CrossProcessLocks.Lock fetchLock) {
+        sWeatherCache.put(location, entry);
+        getDiskCache(context).put(location,
+                                  entry,
+                                  releaseAfterWrite(fetchLock));
+    }
+
+    /**
+     * Create the cache entry for @a weatherData, observed at @a dt
+     * (in seconds, 0 if unknown), fetched now and fresh for as long
+     * as its observation time, @a freshnessMillis (-1 if the Weather
+     * Service didn't say) and the @a previous entry for the location
+     * (may be null) suggest.
+     */
+    private static WeatherCache.Entry newEntry(WeatherData weatherData,
+                                               long dt,
+                                               long freshnessMillis,
+                                               WeatherCache.Entry previous,
+                                               String eTag,
+                                               String lastModified) {
+        long now = getCurrentTimeInMilliSeconds();
+        long observedAt = dt * 1000;
+        long ttlMillis = sWeatherCache.adaptiveTtlMillis(now,
+                                                         observedAt,
+                                                         freshnessMillis,
+                                                         previous,
+                                                         false);
+        Log.d(TAG, "Caching " + weatherData.getName()
+              + " for " + ttlMillis + " ms");
+        return new WeatherCache.Entry(weatherData,
+                                      now,
+                                      now + ttlMillis,
+                                      eTag,
+                                      lastModified,
+                                      observedAt);
+    }
+
+    /**
+     * Remember the city id the Weather Service reported for the
+     * location, so later lookups of it can be batched.
+     */
+    private static void rememberCityId(String location, long cityId) {
+        if (cityId != 0)
+            sCityIds.put(WeatherCache.normalize(location), cityId);
+    }
+
+    /**
+     * Take a token from the rate limiter, if there is one, for a
+     * download the circuit breaker has just allowed.  A download that
+     * gets no token never happens, so the breaker is told it was
+     * cancelled.
      *
-     * @param jsonWeather json weather object
-     * @param location location
-     * @param context app context
+     * @throws IllegalStateException if no token could be had
      */
-    private static void cacheWeatherData(JsonWeather jsonWeather, String location, Context context) {
-        SharedPreferences.Editor editor = context.getSharedPreferences(MY_PREFERENCES_NAME, Context.MODE_PRIVATE).edit();
-        editor.putString(JsonWeather.name_JSON, jsonWeather.getmName());
-        editor.putLong(JsonWeather.speed_JSON, Double.doubleToRawLongBits(jsonWeather.getmSpeed()));
-        editor.putLong(JsonWeather.deg_JSON, Double.doubleToRawLongBits(jsonWeather.getmDeg()));
-        editor.putLong(JsonWeather.temp_JSON, Double.doubleToRawLongBits(jsonWeather.getmTemp()));
-        editor.putLong(JsonWeather.humidity_JSON, jsonWeather.getmHumidity());
-        editor.putLong(JsonWeather.sunrise_JSON, jsonWeather.getmSunrise());
-        editor.putLong(JsonWeather.sunset_JSON, jsonWeather.getmSunset());
-        editor.putString("location", location);
+    private static void acquireToken(Deadline deadline) {
+        RateLimiter rateLimiter = sRateLimiter;
+        if (rateLimiter == null)
+            return;
+        try {
+            rateLimiter.acquire(deadline);
+        } catch (RuntimeException e) {
+            sBreaker.onCancelled();
+            throw e;
+        }
+    }
 
-        editor.putLong("timestamp", getCurrentTimeInMilliSeconds());
-        Log.d("Utils", "" + getCurrentTimeInMilliSeconds());
+    /**
+     * Fetch the Weather info for the location as part of a group
+     * download, if batching is turned on and its city id is known.
+     *
+     * @return the parsed weather, or null if it must be downloaded on
+     * its own
+     * @throws IllegalStateException if the deadline passes
+     */
+    private static WeatherResponse fetchBatched(String location,
+                                                Deadline deadline) {
+        MicroBatcher<WeatherResponse> batcher = sBatcher;
+        Long cityId = sCityIds.get(WeatherCache.normalize(location));
+        if (batcher == null || cityId == null)
+            return null;
 
-        editor.commit();
+        try {
+            return batcher.fetch(cityId.toString(), deadline);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(Deadline.EXCEEDED_MESSAGE);
+        } catch (Exception e) {
+            Log.e(TAG, "Group download for " + location + " failed", e);
+            return null;
+        }
     }
 
     /**
-     * Read the Weather data from the Shared Preferences cache.
+     * Download the Weather info for several cities with a single
+     * request to the group endpoint, passing each city to @a sink as
+     * soon as it has been parsed.
      *
-     * @param context app context
-     * @return WeatherData object that can be passed in between address spaces
+     * @param cityIds ids of the cities
+     * @param deadline time by which the download must finish
+     * @param sink receives the parsed weather keyed by city id
+     * @throws IllegalStateException if the request is refused by the
+     * rate limiter or circuit breaker, or the deadline passes
+     */
+    private static void downloadGroup(Set<String> cityIds,
+                                      Deadline deadline,
+                                      final MicroBatcher.Sink<WeatherResponse> sink)
+        throws IOException {
+        if (!sBreaker.allowRequest(getCurrentTimeInMilliSeconds()))
+            throw new IllegalStateException(UNAVAILABLE_MESSAGE);
+        acquireToken(deadline);
+
+        boolean succeeded = false;
+        long start = System.nanoTime();
+        try {
+            StringBuilder ids = new StringBuilder();
+            for (String cityId : cityIds) {
+                if (ids.length() > 0)
+                    ids.append(',');
+                ids.append(cityId);
+            }
+            String url = WEATHER_GROUP_SEARCH_URL + ids;
+            WeatherListResponse response;
+
+            NioWeatherEngine engine = sEngine;
+            if (engine != null) {
+                // The cities are parsed on the engine's I/O thread as
+                // they arrive.
+                response = engine.fetchAndWait
+                    (url,
+                     Collections.<String, String>emptyMap(),
+                     deadline,
+                     new NioWeatherEngine.Handler<WeatherListResponse>() {
+                         @Override
+                         public WeatherListResponse onHead(WeatherTransport.Head head)
+                             throws IOException {
+                             return newGroupResponse(head, sink);
+                         }
+                     });
+            } else {
+                WeatherTransport.Exchange exchange =
+                    sTransport.get(url,
+                                   Collections.<String, String>emptyMap(),
+                                   deadline);
+
+                try (InputStream in = exchange.getBody()) {
+                    response = sParsers.get().parseList
+                        (in, newGroupResponse(exchange, sink));
+                } catch (IOException e) {
+                    exchange.abort();
+                    throw e;
+                }
+            }
+            Log.d(TAG, "Group download returned "
+                  + response.getElementCount()
+                  + " of " + cityIds.size() + " cities");
+            succeeded = true;
+        } finally {
+            if (succeeded)
+                sBreaker.onSuccess((System.nanoTime() - start) / 1000000L,
+                                   getCurrentTimeInMilliSeconds());
+            else if (deadline.isExpired())
+                sBreaker.onCancelled();
+            else
+                sBreaker.onFailure(getCurrentTimeInMilliSeconds());
+        }
+    }
+
+    /**
+     * Create the response to a group download with @a head, whose
+     * cities are parsed straight from their bytes, one at a time,
+     * waking the lookup waiting for each city in @a sink as soon as
+     * it has been parsed.
+     *
+     * @throws IOException if the Weather Service failed
+     */
+    private static WeatherListResponse newGroupResponse(WeatherTransport.Head head,
+                                                        final MicroBatcher.Sink<WeatherResponse> sink)
+        throws IOException {
+        if (head.getStatusCode() != HttpURLConnection.HTTP_OK)
+            throw new IOException("Weather Service answered "
+                                  + head.getStatusCode());
+        return new WeatherListResponse(HttpURLConnection.HTTP_OK,
+                                       null,
+                                       null,
+                                       WeatherHttpClient.getFreshnessMillis(head)) {
+            @Override
+            protected void onElement(WeatherResponse element) {
+                // A city left out is downloaded on its own.
+                if (element.getId() != 0 && element.isComplete())
+                    sink.deliver(Long.toString(element.getId()), element);
+            }
+        };
+    }
+
+    /**
+     * Return the last Weather info known for the location, however
+     * old, flagged as stale, for use when the Weather Service cannot
+     * be reached.
+     *
+     * @throws IllegalStateException if nothing is known about the
+     * location
+     */
+    private static WeatherData serveLastKnown(String location,
+                                              Context context) {
+        WeatherCache.Entry lastKnown = sWeatherCache.peek(location);
+        if (lastKnown == null)
+            lastKnown = getDiskCache(context).get(location);
+        if (lastKnown == null)
+            throw new IllegalStateException(UNAVAILABLE_MESSAGE);
+
+        Log.d(TAG, "Weather service unavailable, serving last known data for "
+              + location);
+        return lastKnown.mWeatherData.asStale();
+    }
+
+    /**
+     * Return the fresh Weather info for the location from the disk
+     * cache, also caching it in memory, or null if there is none.
+     */
+    private static WeatherData readFreshFromDisk(String location,
+                                                 Context context) {
+        WeatherCache.Entry diskEntry = getDiskCache(context).get(location);
+        if (diskEntry != null
+            && diskEntry.isFresh(getCurrentTimeInMilliSeconds())) {
+            Log.d(TAG, "Read data from disk cache for " + location);
+            sWeatherCache.put(location, diskEntry);
+            return diskEntry.mWeatherData;
+        }
+        return null;
+    }
+
+    /**
+     * Download the Weather info for the location as downloadWeather()
+     * does, hedging the download with a second one if it is slower
+     * than most recent downloads and hedging is turned on.
+     */
+    private static WeatherResponse downloadHedged(final String location,
+                                                  final WeatherCache.Entry previous,
+                                                  final Deadline deadline) {
+        Hedger hedger = sHedger;
+        if (hedger == null)
+            return downloadWeather(location, previous, deadline);
+
+        final AtomicBoolean first = new AtomicBoolean(true);
+        try {
+            return hedger.call(new Callable<WeatherResponse>() {
+                    @Override
+                    public WeatherResponse call() {
+                        // The caller took the first download's token;
+                        // a hedge is only worth sending if its own
+                        // token is available at once.
+                        RateLimiter rateLimiter = sRateLimiter;
+                        if (!first.getAndSet(false)
+                            && rateLimiter != null
+                            && !rateLimiter.tryAcquire())
+                            return null;
+                        return downloadWeather(location, previous, deadline);
+                    }
+                }, deadline);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(Deadline.EXCEEDED_MESSAGE);
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to download " + location, e);
+            return null;
+        }
+    }
+
+    /**
+     * Download the Weather info for the location from the Weather
+     * Service web service.  If @a previous is not null, its
+     * validators are sent so the service can answer 304 Not Modified
+     * instead of sending the body again.
+     *
+     * @param location location for the search
+     * @param previous expired entry to revalidate, may be null
+     * @param deadline time by which the download must finish
+     * @return the response, or null if the download failed
+     * @throws IllegalStateException if the deadline has passed
+     */
+    private static WeatherResponse downloadWeather(String location,
+                                                   final WeatherCache.Entry previous,
+                                                   Deadline deadline) {
+        try {
+            Map<String, String> headers = new HashMap<>();
+            if (previous != null) {
+                if (previous.mETag != null)
+                    headers.put("If-None-Match", previous.mETag);
+                if (previous.mLastModified != null)
+                    headers.put("If-Modified-Since", previous.mLastModified);
+            }
+
+            // Append the location to create the full URL.
+            String url = WEATHER_DATA_SEARCH_URL
+                + URLEncoder.encode(location, "UTF-8");
+
+            // The engine parses the Json results on its I/O thread as
+            // they arrive, while this thread waits for them.
+            NioWeatherEngine engine = sEngine;
+            if (engine != null)
+                return checkComplete(engine.fetchAndWait
+                    (url,
+                     headers,
+                     deadline,
+                     new NioWeatherEngine.Handler<WeatherResponse>() {
+                         @Override
+                         public WeatherResponse onHead(WeatherTransport.Head head)
+                             throws IOException {
+                             return newResponse(head, previous);
+                         }
+                     }));
+
+            // Send the GET request.
+            WeatherTransport.Exchange exchange =
+                sTransport.get(url, headers, deadline);
+
+            // Reads the Json results, which the parser stops reading
+            // once it has every field it needs.  Closing the stream
+            // lets the transport drain the rest and reuse the
+            // connection, or close it.
+            try (InputStream in = exchange.getBody()) {
+                WeatherResponse response = newResponse(exchange, previous);
+                if (response.isNotModified())
+                    return response;
+
+                // Parse the Json results straight from their bytes
+                // into the response's WeatherData object.
+                return checkComplete(sParsers.get().parse(in, response));
+            } catch (IOException e) {
+                // Don't leave a broken connection in the pool.
+                exchange.abort();
+                throw e;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Create the response to a download with @a head, revalidating
+     * @a previous (may be null), for its body to be parsed into.
+     *
+     * @throws IOException if the Weather Service failed
      */
-    private static WeatherData readCachedWeatherData(Context context) {
-        SharedPreferences preferences = context.getSharedPreferences(MY_PREFERENCES_NAME, Context.MODE_PRIVATE);
-        String name = preferences.getString(JsonWeather.name_JSON, null);
-        double speed = Double.longBitsToDouble(preferences.getLong(JsonWeather.speed_JSON, 0));
-        double deg = Double.longBitsToDouble(preferences.getLong(JsonWeather.deg_JSON, 0));
-        double temp = Double.longBitsToDouble(preferences.getLong(JsonWeather.temp_JSON, 0));
-        long humidity = preferences.getLong(JsonWeather.humidity_JSON, 0);
-        long sunrise = preferences.getLong(JsonWeather.sunrise_JSON, 0);
-        long sunset = preferences.getLong(JsonWeather.sunset_JSON, 0);
-        Log.d(TAG, "Read data from cache, e.g: sunset: " + sunset);
+    private static WeatherResponse newResponse(WeatherTransport.Head head,
+                                               WeatherCache.Entry previous)
+        throws IOException {
+        int statusCode = head.getStatusCode();
+        String eTag = head.getHeader("ETag");
+        String lastModified = head.getHeader("Last-Modified");
+
+        if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED
+            && previous != null)
+            return new WeatherResponse(statusCode,
+                                       eTag != null ? eTag : previous.mETag,
+                                       lastModified != null
+                                       ? lastModified
+                                       : previous.mLastModified,
+                                       WeatherHttpClient.getFreshnessMillis(head));
+
+        // An unknown location has a body to parse; any other error
+        // means the Weather Service failed.
+        if (statusCode != HttpURLConnection.HTTP_OK
+            && statusCode != HttpURLConnection.HTTP_NOT_FOUND)
+            throw new IOException("Weather Service answered " + statusCode);
 
-        return new WeatherData(name, speed, deg, temp, humidity, sunrise, sunset);
+        return new WeatherResponse(statusCode,
+                                   eTag,
+                                   lastModified,
+                                   WeatherHttpClient.getFreshnessMillis(head));
+    }
+
+    /**
+     * Return @a response, unless it is a weather response whose body
+     * lacked some of the fields of the weather.
+     *
+     * @throws IOException if the body was incomplete, so that it is
+     * treated as a failed download rather than cached
+     */
+    private static WeatherResponse checkComplete(WeatherResponse response)
+        throws IOException {
+        if (!response.isNotModified()
+            && !response.isNotFound()
+            && !response.isComplete())
+            throw new IOException("Weather Service sent incomplete weather");
+        return response;
+    }
+
+    /**
+     * Return a Runnable that releases @a lock, if it is not null.
+     */
+    private static Runnable releaseAfterWrite(final CrossProcessLocks.Lock lock) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (lock != null)
+                    lock.release();
+            }
+        };
     }
 
     /**
@@ -154,40 +1030,237 @@ public class Utils {
     }
 
     /**
-     * Get the Cached weather data timestamp. The location must be equal to
-     * the location stored in the shared preferences, otherwise 0 is returned.
+     * Return the process-wide fetch locks, creating them in the
+     * application's cache directory on first use.
      *
-     * @param location location
      * @param context app context
-     * @return long timestamp, or zero
      */
-    private static long getCacheWeatherDataTimeStamp(String location, Context context) {
-        SharedPreferences preferences = context.getSharedPreferences(MY_PREFERENCES_NAME, Context.MODE_PRIVATE);
-        long timestamp = preferences.getLong("timestamp", 0);
-        String prefLocation = preferences.getString("location", null);
-        if (prefLocation == null) {
-            return 0;
-        } else if (prefLocation.equals(location)) {
-            return timestamp;
-        }
-        return 0;
+    private static synchronized CrossProcessLocks getFetchLocks(Context context) {
+        if (sFetchLocks == null)
+            sFetchLocks =
+                new CrossProcessLocks(new File(context.getCacheDir(),
+                                               FETCH_LOCKS_DIRECTORY));
+        return sFetchLocks;
     }
 
     /**
-     * See if the cached time period has not elapsed.
+     * Return the process-wide disk cache, creating it in the
+     * application's cache directory on first use.
      *
-     * @param timestampMillis
-     * @param currentTimeMillis
-     * @return true if cached time period has not elapsed, false otherwise
+     * @param context app context
+     */
+    private static synchronized WeatherDiskCache getDiskCache(Context context) {
+        if (sDiskCache == null)
+            sDiskCache = new WeatherDiskCache(context.getCacheDir());
+        return sDiskCache;
+    }
+
+    /**
+     * Apply the cache settings from the app's resources.  Called by
+     * each service when it is created, since the services run in
+     * separate processes with separate copies of these settings.
+     *
+     * @param context app context
+     */
+    public static void configure(Context context) {
+        Resources resources = context.getResources();
+        setCacheTtlMillis
+            (resources.getInteger(R.integer.weather_cache_ttl_millis));
+        setStaleWhileRevalidateMillis
+            (resources.getInteger(R.integer.weather_stale_while_revalidate_millis));
+        sWeatherCache.setMaxTtlMillis
+            (resources.getInteger(R.integer.weather_cache_max_ttl_millis));
+        sWeatherCache.setObservationIntervalMillis
+            (resources.getInteger(R.integer.weather_observation_interval_millis));
+        sNegativeCache.setTtlMillis
+            (resources.getInteger(R.integer.weather_negative_cache_ttl_millis));
+        WeatherHttpClient.configurePool
+            (resources.getInteger(R.integer.weather_http_max_idle_connections),
+             resources.getInteger(R.integer.weather_http_keep_alive_millis));
+        WeatherHttpClient.configureTimeouts
+            (resources.getInteger(R.integer.weather_http_connect_timeout_millis),
+             resources.getInteger(R.integer.weather_http_read_timeout_millis));
+        configureHedging(resources);
+        sBreaker = new CircuitBreaker
+            (resources.getInteger(R.integer.weather_breaker_window_size),
+             resources.getInteger(R.integer.weather_breaker_min_calls),
+             resources.getInteger(R.integer.weather_breaker_failure_rate_percent),
+             resources.getInteger(R.integer.weather_breaker_slow_call_millis),
+             resources.getInteger(R.integer.weather_breaker_open_millis));
+        configureRateLimit(context, resources);
+        configureTransport(resources);
+
+        int batchWindowMillis =
+            resources.getInteger(R.integer.weather_batch_window_millis);
+        sBatcher = batchWindowMillis > 0
+            ? new MicroBatcher<>(sGroupCall,
+                                 batchWindowMillis,
+                                 resources.getInteger(R.integer.weather_batch_max_size))
+            : null;
+    }
+
+    /**
+     * Use the configured transport: the Weather Service over HTTP,
+     * either blocking or on the non-blocking engine, or an in-memory
+     * fake for running without a network.
+     */
+    private static void configureTransport(Resources resources) {
+        String transport = resources.getString(R.string.weather_transport);
+        if (TRANSPORT_NIO.equals(transport)) {
+            sTransport = new HttpWeatherTransport();
+            setEngine(new NioWeatherEngine
+                      (resources.getInteger(R.integer.weather_http_max_idle_connections),
+                       resources.getInteger(R.integer.weather_http_keep_alive_millis),
+                       resources.getInteger(R.integer.weather_http_read_timeout_millis)));
+            Log.d(TAG, "Downloading on the non-blocking engine");
+            return;
+        }
+
+        setEngine(null);
+        if (!TRANSPORT_FAKE.equals(transport)) {
+            sTransport = new HttpWeatherTransport();
+            return;
+        }
+
+        try (InputStream in = resources.openRawResource(R.raw.sample)) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            for (int count; (count = in.read(buffer)) != -1;)
+                payload.write(buffer, 0, count);
+            sTransport = new FakeWeatherTransport(payload.toByteArray());
+            Log.d(TAG, "Serving weather from the fake transport");
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the fake payload", e);
+        }
+    }
+
+    /**
+     * Make every download go through @a transport, e.g. a
+     * FakeWeatherTransport to run or benchmark the services without a
+     * network.
      */
-    private static boolean currentTimeWithinRefreshRate(long timestampMillis, long currentTimeMillis) {
-        long refreshRate = 10000;
+    public static void setTransport(WeatherTransport transport) {
+        setEngine(null);
+        sTransport = transport;
+    }
+
+    /**
+     * Make every download on @a engine, or through the transport if
+     * it is null, shutting down the engine used until now.
+     */
+    private static void setEngine(NioWeatherEngine engine) {
+        NioWeatherEngine previous = sEngine;
+        sEngine = engine;
+        if (previous != null)
+            previous.shutdown();
+    }
 
-        long diff = currentTimeMillis - timestampMillis;
-        if (diff >= refreshRate) {
-            return false;
+    /**
+     * Set up the token bucket shared by both processes as configured.
+     * The bucket is created once per process: its state file may only
+     * be locked by one FileLock in a process at a time, and the
+     * configuration it is built from can't change while the process
+     * runs.
+     */
+    private static synchronized void configureRateLimit(Context context,
+                                                        Resources resources) {
+        int permitsPerMinute =
+            resources.getInteger(R.integer.weather_rate_limit_per_minute);
+        if (permitsPerMinute <= 0) {
+            sRateLimiter = null;
+            return;
         }
-        return true;
+        if (sRateLimiter != null)
+            return;
+        sRateLimiter = new RateLimiter
+            (context.getCacheDir(),
+             permitsPerMinute,
+             resources.getInteger(R.integer.weather_rate_limit_burst),
+             RATE_LIMIT_POLICY_QUEUE.equals
+             (resources.getString(R.string.weather_rate_limit_policy)),
+             resources.getInteger(R.integer.weather_rate_limit_max_wait_millis));
+    }
+
+    /**
+     * Turn hedging of slow downloads on or off as configured.
+     */
+    private static void configureHedging(Resources resources) {
+        if (!resources.getBoolean(R.bool.weather_hedging_enabled)) {
+            sHedger = null;
+            return;
+        }
+        RetryBudget budget =
+            new RetryBudget(resources.getInteger(R.integer.weather_hedging_budget_percent)
+                            / 100.0,
+                            HEDGE_BUDGET_MAX_TOKENS);
+        sHedger = new Hedger(sHedgeExecutor,
+                             new LatencyTracker(HEDGE_LATENCY_SAMPLES),
+                             budget,
+                             resources.getInteger(R.integer.weather_hedging_percentile),
+                             resources.getInteger(R.integer.weather_hedging_min_delay_millis));
+    }
+
+    /**
+     * Load the configured hot locations, and the locations most
+     * recently looked up by either service, into the caches on a
+     * background thread.  Locations still fresh on disk are only
+     * copied into memory; the rest are downloaded.  Returns at once,
+     * so it can be called from a service's onCreate() without
+     * delaying onBind().
+     *
+     * @param context app context
+     */
+    public static void prewarm(final Context context) {
+        Resources resources = context.getResources();
+        final Set<String> locations = new LinkedHashSet<>();
+        for (String location
+                 : resources.getStringArray(R.array.weather_prewarm_locations))
+            locations.add(WeatherCache.normalize(location));
+        final int recentCount =
+            resources.getInteger(R.integer.weather_prewarm_recent_count);
+
+        sRefreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    locations.addAll(getDiskCache(context).getRecentLocations(recentCount));
+                    for (String location : locations) {
+                        try {
+                            if (sWeatherCache.get(location,
+                                                  getCurrentTimeInMilliSeconds()) == null)
+                                fetchCoalesced(location, context);
+                        } catch (Exception e) {
+                            Log.e(TAG, "Unable to prewarm " + location, e);
+                        }
+                    }
+                    Log.d(TAG, "Prewarmed " + locations.size()
+                          + " locations: " + sWeatherCache);
+                }
+            });
+    }
+
+    /**
+     * Set how long, in milliseconds, an expired entry may still be
+     * returned while it is refreshed in the background.  Zero
+     * disables stale-while-revalidate.
+     */
+    public static void setStaleWhileRevalidateMillis(long maxStaleMillis) {
+        sWeatherCache.setMaxStaleMillis(maxStaleMillis);
+    }
+
+    /**
+     * Set the time-to-live, in milliseconds, of newly cached weather
+     * data.
+     */
+    public static void setCacheTtlMillis(long ttlMillis) {
+        sWeatherCache.setTtlMillis(ttlMillis);
+    }
+
+    /**
+     * Accessor that returns the in-memory weather cache, e.g., to
+     * read its hit, miss and eviction counts.
+     */
+    public static WeatherCache getWeatherCache() {
+        return sWeatherCache;
     }
 
     /**
@@ -0,0 +1,399 @@
+package vandy.mooc.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import vandy.mooc.aidl.WeatherData;
+
+/**
+ * @class WeatherCache
+ *
+ * @brief A bounded, thread-safe, in-memory cache of WeatherData keyed
+ *        by location.  Entries are evicted in least-recently-used
+ *        order once the cache is full, and each entry carries its own
+ *        expiry time so that it is only served while it is fresh.
+ *
+ *        All access is synchronized on the cache itself, which is
+ *        sufficient for the handful of Binder threads that call into
+ *        WeatherServiceSync and WeatherServiceAsync.
+ */
+public class WeatherCache {
+    /**
+     * Default maximum number of locations held in the cache.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 32;
+
+    /**
+     * Default time-to-live of a cache entry, in milliseconds.
+     */
+    public static final long DEFAULT_TTL_MILLIS = 10000;
+
+    /**
+     * Default longest time-to-live an entry's adaptive time-to-live
+     * may grow to, in milliseconds.
+     */
+    public static final long DEFAULT_MAX_TTL_MILLIS = 30 * 60 * 1000;
+
+    /**
+     * Default time, in milliseconds, between two observations of a
+     * location by the Weather Service.
+     */
+    public static final long DEFAULT_OBSERVATION_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * A single cached WeatherData together with the time at which it
+     * was fetched, the time at which it expires, the validators
+     * (ETag and Last-Modified, either may be null) the Weather
+     * Service sent with it, and the time the weather was observed (0
+     * if unknown).
+     */
+    public static class Entry {
+        public final WeatherData mWeatherData;
+        public final long mFetchedAt;
+        public final long mExpiresAt;
+        public final String mETag;
+        public final String mLastModified;
+        public final long mObservedAt;
+
+        public Entry(WeatherData weatherData,
+                     long fetchedAt,
+                     long expiresAt) {
+            this(weatherData, fetchedAt, expiresAt, null, null, 0);
+        }
+
+        public Entry(WeatherData weatherData,
+                     long fetchedAt,
+                     long expiresAt,
+                     String eTag,
+                     String lastModified) {
+            this(weatherData, fetchedAt, expiresAt, eTag, lastModified, 0);
+        }
+
+        public Entry(WeatherData weatherData,
+                     long fetchedAt,
+                     long expiresAt,
+                     String eTag,
+                     String lastModified,
+                     long observedAt) {
+            mWeatherData = weatherData;
+            mFetchedAt = fetchedAt;
+            mExpiresAt = expiresAt;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mObservedAt = observedAt;
+        }
+
+        /**
+         * @return true if the entry carries a validator that can be
+         * used to revalidate it with a conditional GET.
+         */
+        public boolean hasValidator() {
+            return mETag != null || mLastModified != null;
+        }
+
+        /**
+         * @return a copy of this entry, revalidated at @a fetchedAt
+         * and fresh until @a expiresAt.
+         */
+        public Entry revalidated(long fetchedAt, long expiresAt) {
+            return new Entry(mWeatherData,
+                             fetchedAt,
+                             expiresAt,
+                             mETag,
+                             mLastModified,
+                             mObservedAt);
+        }
+
+        /**
+         * @return the time-to-live the entry was given when it was
+         * fetched.
+         */
+        public long getTtlMillis() {
+            return mExpiresAt - mFetchedAt;
+        }
+
+        /**
+         * @return true if the entry has not yet expired at @a nowMillis.
+         */
+        public boolean isFresh(long nowMillis) {
+            return nowMillis < mExpiresAt;
+        }
+
+        /**
+         * @return true if the entry has expired at @a nowMillis but by
+         * less than @a maxStaleMillis, so it may still be served while
+         * it is refreshed.
+         */
+        public boolean isServableStale(long nowMillis, long maxStaleMillis) {
+            return !isFresh(nowMillis)
+                && nowMillis < mExpiresAt + maxStaleMillis;
+        }
+    }
+
+    /**
+     * Access-ordered map, so iteration starts at the least recently
+     * used entry.
+     */
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    /**
+     * Maximum number of entries held before eviction kicks in.
+     */
+    private final int mMaxEntries;
+
+    /**
+     * Time-to-live applied by put(String, WeatherData).
+     */
+    private volatile long mTtlMillis;
+
+    /**
+     * How long after expiry an entry may still be served stale, or 0
+     * if stale entries are never served.
+     */
+    private volatile long mMaxStaleMillis;
+
+    /**
+     * Longest time-to-live adaptiveTtlMillis() returns.
+     */
+    private volatile long mMaxTtlMillis = DEFAULT_MAX_TTL_MILLIS;
+
+    /**
+     * Time between two observations of a location by the Weather
+     * Service.
+     */
+    private volatile long mObservationIntervalMillis =
+        DEFAULT_OBSERVATION_INTERVAL_MILLIS;
+
+    /**
+     * Statistics used to size the cache.
+     */
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    private long mStaleHits;
+
+    /**
+     * Create a cache holding at most @a maxEntries locations, each of
+     * which stays fresh for @a ttlMillis.
+     */
+    public WeatherCache(int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("maxEntries must be positive");
+
+        mMaxEntries = maxEntries;
+        mTtlMillis = ttlMillis;
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, WeatherCache.Entry> eldest) {
+                if (size() > mMaxEntries) {
+                    mEvictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Create a cache with the default size and time-to-live.
+     */
+    public WeatherCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Return the fresh WeatherData cached for @a location, or null if
+     * there is none.  Entries that are too old to be served stale
+     * are dropped.
+     */
+    public synchronized WeatherData get(String location, long nowMillis) {
+        Entry entry = mEntries.get(normalize(location));
+        if (entry != null && entry.isFresh(nowMillis)) {
+            mHits++;
+            return entry.mWeatherData;
+        }
+        if (entry != null && !entry.isServableStale(nowMillis, mMaxStaleMillis))
+            mEntries.remove(normalize(location));
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Return the entry cached for @a location, fresh or not, or null
+     * if there is none.  Doesn't affect the statistics.
+     */
+    public synchronized Entry peek(String location) {
+        return mEntries.get(normalize(location));
+    }
+
+    /**
+     * Return the entry cached for @a location if it has expired but
+     * is still within the stale window, or null otherwise.
+     */
+    public synchronized Entry getStale(String location, long nowMillis) {
+        Entry entry = mEntries.get(normalize(location));
+        if (entry != null && entry.isServableStale(nowMillis, mMaxStaleMillis)) {
+            mStaleHits++;
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Cache @a weatherData for @a location using the default
+     * time-to-live.
+     */
+    public void put(String location, WeatherData weatherData, long nowMillis) {
+        put(location, weatherData, nowMillis, mTtlMillis);
+    }
+
+    /**
+     * Cache @a weatherData for @a location for @a ttlMillis.
+     */
+    public synchronized void put(String location,
+                                 WeatherData weatherData,
+                                 long nowMillis,
+                                 long ttlMillis) {
+        put(location,
+            new Entry(weatherData, nowMillis, nowMillis + ttlMillis));
+    }
+
+    /**
+     * Cache an @a entry whose expiry has already been computed, e.g.
+     * one read back from the disk cache.
+     */
+    public synchronized void put(String location, Entry entry) {
+        mEntries.put(normalize(location), entry);
+    }
+
+    /**
+     * Remove all entries that are too old to be served stale.
+     */
+    public synchronized void purgeExpired(long nowMillis) {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext())
+            if (it.next().mExpiresAt + mMaxStaleMillis <= nowMillis)
+                it.remove();
+    }
+
+    /**
+     * Remove every entry; statistics are kept.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        mTtlMillis = ttlMillis;
+    }
+
+    public long getTtlMillis() {
+        return mTtlMillis;
+    }
+
+    /**
+     * Work out how long weather data fetched at @a nowMillis stays
+     * fresh.
+     *
+     * If the Weather Service said how long the response is fresh for
+     * (@a freshnessMillis, from Cache-Control or Expires, or -1 if it
+     * didn't) that is used as is.  Otherwise the data stays fresh at
+     * least until the next observation is due, @a observedAt (0 if
+     * unknown) plus the observation interval, and at least for the
+     * default time-to-live.  Data that hasn't changed since @a
+     * previous, because it was not modified or was observed at the
+     * same time, is kept twice as long as @a previous was, so
+     * locations that rarely change are fetched less and less often.
+     * The result never exceeds the maximum time-to-live.
+     */
+    public long adaptiveTtlMillis(long nowMillis,
+                                  long observedAt,
+                                  long freshnessMillis,
+                                  Entry previous,
+                                  boolean notModified) {
+        long maxTtlMillis = Math.max(mTtlMillis, mMaxTtlMillis);
+        if (freshnessMillis >= 0)
+            return Math.min(freshnessMillis, maxTtlMillis);
+
+        long ttlMillis = mTtlMillis;
+        if (observedAt > 0)
+            ttlMillis = Math.max(ttlMillis,
+                                 observedAt + mObservationIntervalMillis - nowMillis);
+
+        boolean unchanged = previous != null
+            && (notModified
+                || (observedAt > 0 && observedAt == previous.mObservedAt));
+        if (unchanged)
+            ttlMillis = Math.max(ttlMillis, 2 * previous.getTtlMillis());
+
+        return Math.min(ttlMillis, maxTtlMillis);
+    }
+
+    public void setMaxTtlMillis(long maxTtlMillis) {
+        mMaxTtlMillis = maxTtlMillis;
+    }
+
+    public long getMaxTtlMillis() {
+        return mMaxTtlMillis;
+    }
+
+    public void setObservationIntervalMillis(long observationIntervalMillis) {
+        mObservationIntervalMillis = observationIntervalMillis;
+    }
+
+    public long getObservationIntervalMillis() {
+        return mObservationIntervalMillis;
+    }
+
+    public void setMaxStaleMillis(long maxStaleMillis) {
+        mMaxStaleMillis = maxStaleMillis;
+    }
+
+    public long getMaxStaleMillis() {
+        return mMaxStaleMillis;
+    }
+
+    public int getMaxEntries() {
+        return mMaxEntries;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    public synchronized long getStaleHitCount() {
+        return mStaleHits;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WeatherCache [size=" + mEntries.size()
+                + ", maxEntries=" + mMaxEntries
+                + ", hits=" + mHits
+                + ", misses=" + mMisses
+                + ", evictions=" + mEvictions
+                + ", staleHits=" + mStaleHits + "]";
+    }
+
+    /**
+     * Locations typed by users differ in case and surrounding
+     * whitespace, so normalize them before using them as keys.
+     */
+    static String normalize(String location) {
+        return location == null ? "" : location.trim().toLowerCase(Locale.US);
+    }
+}
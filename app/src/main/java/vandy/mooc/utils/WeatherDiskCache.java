@@ -0,0 +1,532 @@
+package vandy.mooc.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+import vandy.mooc.aidl.WeatherData;
+import android.util.Log;
+
+/**
+ * @class WeatherDiskCache
+ *
+ * @brief A persistent cache of WeatherData keyed by location, stored
+ *        as an append-only journal of small binary records.
+ *
+ *        Every put() appends one checksummed record to the end of the
+ *        journal on a background writer thread, so the Binder thread
+ *        that produced the WeatherData never waits on the disk.  An
+ *        in-memory index maps each location to the offset of its
+ *        latest record, so a get() costs one seek and one small read.
+ *        The index is rebuilt by scanning the journal when the cache
+ *        is first used, which lets a freshly started :remote1 or
+ *        :remote2 process answer from disk.  When superseded records
+ *        outnumber live ones the journal is compacted.
+ *
+ *        The journal is shared by both service processes.  Every
+ *        access holds a FileLock on it, and before each access the
+ *        index is brought up to date with records the other process
+ *        appended, so a fetch in either service is a hit in the other.
+ */
+public class WeatherDiskCache {
+    /**
+     * Logging tag used by the debugger.
+     */
+    private final static String TAG =
+        WeatherDiskCache.class.getCanonicalName();
+
+    /**
+     * Name of the journal file inside the cache directory.
+     */
+    public final static String FILE_NAME = "weather.journal";
+
+    /**
+     * Journal header: magic, format version and generation.  The
+     * generation is bumped every time the journal is compacted.
+     */
+    private final static int MAGIC = 0x57544852;
+    private final static int VERSION = 4;
+    private final static int HEADER_SIZE = 16;
+    private final static int GENERATION_OFFSET = 8;
+
+    /**
+     * Each record is prefixed by its payload length and the CRC32 of
+     * the payload.
+     */
+    private final static int RECORD_PREFIX_SIZE = 8;
+
+    /**
+     * Upper bound on a record's payload, used to detect torn writes.
+     */
+    private final static int MAX_RECORD_SIZE = 4096;
+
+    /**
+     * Minimum number of superseded records before compacting.
+     */
+    private final static int MIN_STALE_RECORDS_FOR_COMPACTION = 64;
+
+    /**
+     * How long after expiry a record survives compaction, so that it
+     * can still be served stale.
+     */
+    private final static long EXPIRED_RETENTION_MILLIS = 24 * 60 * 60 * 1000;
+
+    /**
+     * The journal file.
+     */
+    private final File mFile;
+
+    /**
+     * Offset of the latest record for each location key.
+     */
+    private final Map<String, Long> mIndex = new HashMap<>();
+
+    /**
+     * When the latest record for each location key was written, i.e.
+     * when the location was last looked up by either process.
+     */
+    private final Map<String, Long> mAccessedAt = new HashMap<>();
+
+    /**
+     * Open handle on the journal, or null until first use.
+     */
+    private RandomAccessFile mJournal;
+
+    /**
+     * Generation of the journal the index was built from.
+     */
+    private long mGeneration;
+
+    /**
+     * Length of the journal prefix covered by the index.
+     */
+    private long mIndexedLength;
+
+    /**
+     * Number of records in the journal, including superseded ones.
+     */
+    private int mRecordCount;
+
+    /**
+     * Single background thread that performs all appends in order.
+     */
+    private final ExecutorService mWriter =
+        Executors.newSingleThreadExecutor();
+
+    /**
+     * Create a disk cache whose journal lives in @a directory.
+     */
+    public WeatherDiskCache(File directory) {
+        mFile = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Return the entry cached on disk for @a location, whether fresh
+     * or not, or null if there is none or the disk cannot be read.
+     * Records appended by the other service process are picked up
+     * first.
+     */
+    public synchronized WeatherCache.Entry get(String location) {
+        String key = WeatherCache.normalize(location);
+        try {
+            open();
+            FileLock lock = lock(true);
+            try {
+                sync();
+                Long offset = mIndex.get(key);
+                if (offset == null)
+                    return null;
+
+                mJournal.seek(offset);
+                byte[] payload = readPayload(mIndexedLength);
+                if (payload == null)
+                    return null;
+
+                DataInputStream in =
+                    new DataInputStream(new ByteArrayInputStream(payload));
+                if (!key.equals(in.readUTF()))
+                    return null;
+                in.readLong();
+                return readEntry(in);
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + mFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Return up to @a max location keys, most recently written first.
+     * Since both service processes write to the journal, these are
+     * the locations most recently looked up in either of them.  The
+     * order comes from the time stored in each record, so it survives
+     * compaction, which rewrites records in no particular order.
+     */
+    public synchronized List<String> getRecentLocations(int max) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>();
+        try {
+            open();
+            FileLock lock = lock(true);
+            try {
+                sync();
+                entries.addAll(mAccessedAt.entrySet());
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + mFile, e);
+        }
+
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> lhs,
+                               Map.Entry<String, Long> rhs) {
+                return rhs.getValue().compareTo(lhs.getValue());
+            }
+        });
+
+        List<String> locations = new ArrayList<>();
+        for (int i = 0; i < entries.size() && i < max; i++)
+            locations.add(entries.get(i).getKey());
+        return locations;
+    }
+
+    /**
+     * Store @a entry for @a location.  The record is encoded on the
+     * calling thread and appended to the journal in the background.
+     */
+    public void put(String location, WeatherCache.Entry entry) {
+        put(location, entry, null);
+    }
+
+    /**
+     * Store @a entry for @a location and run @a afterWrite on the
+     * writer thread once the record is in the journal (or could not
+     * be written).
+     */
+    public void put(String location,
+                    WeatherCache.Entry entry,
+                    final Runnable afterWrite) {
+        final String key = WeatherCache.normalize(location);
+        final long accessedAt = System.currentTimeMillis();
+        final byte[] record;
+        try {
+            record = encodeRecord(key, accessedAt, entry);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to encode entry for " + key, e);
+            if (afterWrite != null)
+                afterWrite.run();
+            return;
+        }
+
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    append(key, accessedAt, record);
+                } finally {
+                    if (afterWrite != null)
+                        afterWrite.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Append @a record for @a key to the end of the journal and
+     * point the index at it.
+     */
+    private synchronized void append(String key,
+                                     long accessedAt,
+                                     byte[] record) {
+        try {
+            open();
+            FileLock lock = lock(false);
+            try {
+                sync();
+
+                // Drop any torn record left by a process that died
+                // mid-write, so the new record is reachable.
+                long offset = mIndexedLength;
+                if (mJournal.length() != offset)
+                    mJournal.setLength(offset);
+
+                mJournal.seek(offset);
+                mJournal.write(record);
+                mIndex.put(key, offset);
+                mAccessedAt.put(key, accessedAt);
+                mIndexedLength = offset + record.length;
+                mRecordCount++;
+
+                if (mRecordCount - mIndex.size() >= Math.max(MIN_STALE_RECORDS_FOR_COMPACTION,
+                                                             mIndex.size()))
+                    compact();
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to append to " + mFile, e);
+        }
+    }
+
+    /**
+     * Open the journal if that hasn't happened yet, writing a fresh
+     * header if the file is new or of an incompatible version.
+     */
+    private void open() throws IOException {
+        if (mJournal != null)
+            return;
+
+        mJournal = new RandomAccessFile(mFile, "rw");
+        FileLock lock = lock(false);
+        try {
+            if (!readHeader()) {
+                mJournal.setLength(0);
+                writeHeader(mJournal, 0);
+            }
+        } finally {
+            lock.release();
+        }
+
+        // Force the first sync() to scan the whole journal.
+        mGeneration = -1;
+    }
+
+    /**
+     * Lock the whole journal against the other service process.  The
+     * lock is held per process, so callers must also hold this
+     * object's monitor.
+     *
+     * @param shared true for a read lock, false for a write lock
+     */
+    private FileLock lock(boolean shared) throws IOException {
+        return mJournal.getChannel().lock(0L, Long.MAX_VALUE, shared);
+    }
+
+    /**
+     * Read the header, returning false if it is missing or written by
+     * an incompatible version.
+     */
+    private boolean readHeader() throws IOException {
+        if (mJournal.length() < HEADER_SIZE)
+            return false;
+
+        mJournal.seek(0);
+        return mJournal.readInt() == MAGIC && mJournal.readInt() == VERSION;
+    }
+
+    private static void writeHeader(RandomAccessFile file,
+                                    long generation) throws IOException {
+        file.seek(0);
+        file.writeInt(MAGIC);
+        file.writeInt(VERSION);
+        file.writeLong(generation);
+    }
+
+    /**
+     * Bring the index up to date with the journal, which the other
+     * service process may have appended to or compacted since it was
+     * last read.  Must be called with the journal locked.
+     */
+    private void sync() throws IOException {
+        mJournal.seek(GENERATION_OFFSET);
+        long generation = mJournal.readLong();
+        if (generation != mGeneration) {
+            mIndex.clear();
+            mAccessedAt.clear();
+            mRecordCount = 0;
+            mIndexedLength = HEADER_SIZE;
+            mGeneration = generation;
+        }
+
+        if (mJournal.length() > mIndexedLength)
+            scan();
+    }
+
+    /**
+     * Index the records appended after mIndexedLength.  Scanning
+     * stops at a torn or corrupt record, e.g. one left behind when a
+     * process was killed mid-write; append() truncates it away.
+     */
+    private void scan() throws IOException {
+        long length = mJournal.length();
+        long offset = mIndexedLength;
+        mJournal.seek(offset);
+        while (offset < length) {
+            byte[] payload = readPayload(length);
+            if (payload == null) {
+                Log.d(TAG, "Ignoring torn record at offset " + offset);
+                break;
+            }
+
+            DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(payload));
+            String key = in.readUTF();
+            mIndex.put(key, offset);
+            mAccessedAt.put(key, in.readLong());
+            mRecordCount++;
+            offset += RECORD_PREFIX_SIZE + payload.length;
+        }
+        mIndexedLength = offset;
+        Log.d(TAG, "Indexed " + mIndex.size() + " locations from " + mFile);
+    }
+
+    /**
+     * Read the record at the journal's current position, returning
+     * its payload or null if it is incomplete or corrupt.
+     */
+    private byte[] readPayload(long length) throws IOException {
+        long start = mJournal.getFilePointer();
+        if (start + RECORD_PREFIX_SIZE > length)
+            return null;
+
+        int size = mJournal.readInt();
+        int crc = mJournal.readInt();
+        if (size <= 0
+            || size > MAX_RECORD_SIZE
+            || start + RECORD_PREFIX_SIZE + size > length)
+            return null;
+
+        byte[] payload = new byte[size];
+        mJournal.readFully(payload);
+
+        if (crc(payload) != crc)
+            return null;
+        return payload;
+    }
+
+    /**
+     * Rewrite the journal in place so it holds only the latest record
+     * for each location that expired less than EXPIRED_RETENTION_MILLIS
+     * ago, and bump the generation so the other service process
+     * rebuilds its index.  The journal is rewritten rather than
+     * replaced, since the other process keeps its own handle (and
+     * lock) on the file.  Must be called with the journal write
+     * locked.
+     */
+    private void compact() throws IOException {
+        long now = System.currentTimeMillis();
+        ByteArrayOutputStream live = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(live);
+        Map<String, Long> index = new HashMap<>();
+        Map<String, Long> accessedAt = new HashMap<>();
+
+        for (Map.Entry<String, Long> e : mIndex.entrySet()) {
+            mJournal.seek(e.getValue());
+            byte[] payload = readPayload(mIndexedLength);
+            if (payload == null)
+                continue;
+
+            DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(payload));
+            in.readUTF();
+            long accessed = in.readLong();
+            if (readEntry(in).mExpiresAt + EXPIRED_RETENTION_MILLIS <= now)
+                continue;
+
+            accessedAt.put(e.getKey(), accessed);
+            index.put(e.getKey(), (long) (HEADER_SIZE + out.size()));
+            out.writeInt(payload.length);
+            out.writeInt(crc(payload));
+            out.write(payload);
+        }
+        out.flush();
+
+        mGeneration++;
+        writeHeader(mJournal, mGeneration);
+        mJournal.write(live.toByteArray());
+        mJournal.setLength(HEADER_SIZE + live.size());
+
+        mIndex.clear();
+        mIndex.putAll(index);
+        mAccessedAt.clear();
+        mAccessedAt.putAll(accessedAt);
+        mRecordCount = index.size();
+        mIndexedLength = HEADER_SIZE + live.size();
+        Log.d(TAG, "Compacted journal to " + mRecordCount + " records");
+    }
+
+    /**
+     * Encode @a entry, stored at @a accessedAt, as a complete journal
+     * record.
+     */
+    private static byte[] encodeRecord(String key,
+                                       long accessedAt,
+                                       WeatherCache.Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(key);
+        out.writeLong(accessedAt);
+        out.writeLong(entry.mFetchedAt);
+        out.writeLong(entry.mExpiresAt);
+
+        WeatherData data = entry.mWeatherData;
+        out.writeUTF(data.getName() == null ? "" : data.getName());
+        out.writeDouble(data.getSpeed());
+        out.writeDouble(data.getDeg());
+        out.writeDouble(data.getTemp());
+        out.writeLong(data.getHumidity());
+        out.writeLong(data.getSunrise());
+        out.writeLong(data.getSunset());
+        out.writeUTF(entry.mETag == null ? "" : entry.mETag);
+        out.writeUTF(entry.mLastModified == null ? "" : entry.mLastModified);
+        out.writeLong(entry.mObservedAt);
+        out.flush();
+
+        byte[] payload = bytes.toByteArray();
+        ByteArrayOutputStream record =
+            new ByteArrayOutputStream(RECORD_PREFIX_SIZE + payload.length);
+        DataOutputStream prefix = new DataOutputStream(record);
+        prefix.writeInt(payload.length);
+        prefix.writeInt(crc(payload));
+        prefix.write(payload);
+        return record.toByteArray();
+    }
+
+    /**
+     * Decode the remainder of a record payload, after its key and
+     * access time.
+     */
+    private static WeatherCache.Entry readEntry(DataInputStream in) throws IOException {
+        long fetchedAt = in.readLong();
+        long expiresAt = in.readLong();
+        WeatherData data = new WeatherData(in.readUTF(),
+                                           in.readDouble(),
+                                           in.readDouble(),
+                                           in.readDouble(),
+                                           in.readLong(),
+                                           in.readLong(),
+                                           in.readLong());
+        String eTag = in.readUTF();
+        String lastModified = in.readUTF();
+        long observedAt = in.readLong();
+        return new WeatherCache.Entry(data,
+                                      fetchedAt,
+                                      expiresAt,
+                                      eTag.isEmpty() ? null : eTag,
+                                      lastModified.isEmpty() ? null : lastModified,
+                                      observedAt);
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        return (int) checksum.getValue();
+    }
+}
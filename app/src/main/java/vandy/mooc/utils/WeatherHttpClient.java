@@ -0,0 +1,382 @@
+package vandy.mooc.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import android.util.Log;
+
+/**
+ * @class WeatherHttpClient
+ *
+ * @brief The HTTP layer shared by both weather services.  It relies
+ *        on the connection pool built into the platform's
+ *        HttpURLConnection, which keeps idle keep-alive connections
+ *        per host and reuses them for later requests, so a warm fetch
+ *        costs a single request/response round trip instead of a DNS
+ *        lookup, TCP handshake and (for HTTPS) TLS handshake.
+ *
+ *        A connection only goes back to the pool if its response body
+ *        has been read to the end and closed, and it has not been
+ *        disconnect()ed.  The parsers stop reading once they have
+ *        what they need, so getInputStream() returns a stream whose
+ *        close() drains whatever they left unread when that is
+ *        cheap, and disconnect()s the connection when pooling is off
+ *        or too much is left.  Callers otherwise only call
+ *        disconnect() on connections that failed.
+ *
+ *        Responses are requested gzip or deflate compressed and are
+ *        decompressed as they are streamed to the parser.
+ */
+public class WeatherHttpClient {
+    /**
+     * Logging tag used by the debugger.
+     */
+    private final static String TAG =
+        WeatherHttpClient.class.getCanonicalName();
+
+    /**
+     * Default maximum number of idle connections kept per host.
+     */
+    public final static int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+
+    /**
+     * Default time an idle connection is kept before it is evicted,
+     * in milliseconds.
+     */
+    public final static long DEFAULT_KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Most unread bytes drained from a response so that its
+     * connection can be reused; connections with more left are
+     * closed instead.
+     */
+    private final static int MAX_DRAIN_BYTES = 64 * 1024;
+
+    /**
+     * Whether connections are pooled at all, and so worth draining.
+     */
+    private static volatile boolean sKeepAlive = true;
+
+    /**
+     * Configure the platform connection pool.  This must happen
+     * before the first connection is opened in the process, since
+     * the pool reads these system properties when it is created.
+     *
+     * @param maxIdleConnections idle connections kept per host
+     * @param keepAliveMillis how long an idle connection is kept
+     */
+    public static void configurePool(int maxIdleConnections,
+                                     long keepAliveMillis) {
+        sKeepAlive = maxIdleConnections > 0;
+        System.setProperty("http.keepAlive",
+                           Boolean.toString(maxIdleConnections > 0));
+        System.setProperty("http.maxConnections",
+                           Integer.toString(maxIdleConnections));
+        System.setProperty("http.keepAliveDuration",
+                           Long.toString(keepAliveMillis));
+    }
+
+    /**
+     * Default connect and read timeouts, in milliseconds, used when
+     * the caller's deadline leaves more time than that.
+     */
+    private static volatile int sConnectTimeoutMillis = 15000;
+    private static volatile int sReadTimeoutMillis = 15000;
+
+    /**
+     * Set the default connect and read timeouts, in milliseconds.
+     */
+    public static void configureTimeouts(int connectTimeoutMillis,
+                                         int readTimeoutMillis) {
+        sConnectTimeoutMillis = connectTimeoutMillis;
+        sReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Total response body bytes received, as sent on the wire and
+     * after decompression.
+     */
+    private final static AtomicLong sCompressedBytes = new AtomicLong();
+    private final static AtomicLong sUncompressedBytes = new AtomicLong();
+
+    /**
+     * Response body bytes left unread by the parsers and drained, and
+     * number of connections closed rather than drained.
+     */
+    private final static AtomicLong sDrainedBytes = new AtomicLong();
+    private final static AtomicLong sClosedConnections = new AtomicLong();
+
+    /**
+     * Open a keep-alive connection to @a url that accepts a gzip or
+     * deflate compressed response.  Asking for an encoding explicitly
+     * turns off the platform's transparent decompression, so
+     * getInputStream() does it instead and counts the bytes on both
+     * sides.
+     */
+    public static HttpURLConnection open(URL url) throws IOException {
+        return open(url, Deadline.NONE);
+    }
+
+    /**
+     * Open a connection to @a url as above, whose connect and read
+     * timeouts are cut short so they expire no later than @a
+     * deadline.
+     */
+    public static HttpURLConnection open(URL url,
+                                         Deadline deadline) throws IOException {
+        deadline.check();
+        HttpURLConnection connection =
+            (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(toTimeout(deadline.clamp(sConnectTimeoutMillis)));
+        connection.setReadTimeout(toTimeout(deadline.clamp(sReadTimeoutMillis)));
+        connection.setRequestProperty("Connection", "keep-alive");
+        connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        return connection;
+    }
+
+    /**
+     * Convert @a millis to a timeout for HttpURLConnection, where 0
+     * means wait forever.
+     */
+    private static int toTimeout(long millis) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, millis));
+    }
+
+    /**
+     * Return the buffered, decompressed response body of @a
+     * connection, which for an error status is the error body.
+     * Closing the stream drains any unread bytes so the connection
+     * can be reused, or closes the connection if that isn't worth
+     * it.
+     */
+    public static InputStream getInputStream(HttpURLConnection connection)
+        throws IOException {
+        InputStream body;
+        if (connection.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST)
+            body = connection.getInputStream();
+        else {
+            body = connection.getErrorStream();
+            if (body == null)
+                body = new ByteArrayInputStream(new byte[0]);
+        }
+        CountingInputStream compressed = new CountingInputStream(body);
+
+        // A 304 Not Modified has no body to decode.
+        String contentEncoding =
+            connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED
+            ? null
+            : connection.getContentEncoding();
+        CountingInputStream uncompressed =
+            new CountingInputStream(decode(compressed, contentEncoding));
+        return new DrainingInputStream(new BufferedInputStream(uncompressed),
+                                       connection,
+                                       compressed,
+                                       uncompressed);
+    }
+
+    /**
+     * Wrap @a in so it decodes the given Content-Encoding.
+     */
+    private static InputStream decode(InputStream in,
+                                      String contentEncoding) throws IOException {
+        if (contentEncoding == null)
+            return in;
+        else if ("gzip".equalsIgnoreCase(contentEncoding))
+            return new GZIPInputStream(in);
+        else if ("deflate".equalsIgnoreCase(contentEncoding))
+            return new InflaterInputStream(in);
+        else
+            return in;
+    }
+
+    /**
+     * Return how long the response with @a head is fresh for, from
+     * its Cache-Control max-age (less its Age) or, failing that, its
+     * Expires header, or -1 if it has neither.  A no-cache or
+     * no-store response is fresh for 0 milliseconds.
+     */
+    public static long getFreshnessMillis(WeatherTransport.Head head) {
+        String cacheControl = head.getHeader("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache") || directive.equals("no-store"))
+                    return 0;
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        long maxAgeSeconds =
+                            Long.parseLong(directive.substring("max-age=".length()));
+                        String age = head.getHeader("Age");
+                        long ageSeconds = age != null ? Long.parseLong(age.trim()) : 0;
+                        return Math.max(0, maxAgeSeconds - ageSeconds) * 1000;
+                    } catch (NumberFormatException e) {
+                        Log.d(TAG, "Ignoring malformed " + directive);
+                    }
+                }
+            }
+        }
+
+        long expires = parseHttpDate(head.getHeader("Expires"));
+        if (expires != 0) {
+            long date = parseHttpDate(head.getHeader("Date"));
+            return Math.max(0, expires - (date != 0 ? date : System.currentTimeMillis()));
+        }
+        return -1;
+    }
+
+    /**
+     * Parse an HTTP date such as "Tue, 15 Nov 1994 08:12:31 GMT".
+     *
+     * @return the date in milliseconds, or 0 if @a value is null or
+     * malformed
+     */
+    private static long parseHttpDate(String value) {
+        if (value == null)
+            return 0;
+        SimpleDateFormat format =
+            new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value.trim()).getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    public static long getCompressedByteCount() {
+        return sCompressedBytes.get();
+    }
+
+    public static long getUncompressedByteCount() {
+        return sUncompressedBytes.get();
+    }
+
+    public static long getDrainedByteCount() {
+        return sDrainedBytes.get();
+    }
+
+    public static long getClosedConnectionCount() {
+        return sClosedConnections.get();
+    }
+
+    /**
+     * An InputStream that counts the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1)
+                mCount++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = in.read(buffer, offset, length);
+            if (count > 0)
+                mCount += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * An InputStream that, when closed, reads the rest of the raw
+     * response body so the connection can be reused, or closes the
+     * connection if pooling is off or too much of the body is left,
+     * and records how many bytes were received.
+     */
+    private static class DrainingInputStream extends FilterInputStream {
+        private final HttpURLConnection mConnection;
+        private final CountingInputStream mCompressed;
+        private final CountingInputStream mUncompressed;
+
+        DrainingInputStream(InputStream in,
+                            HttpURLConnection connection,
+                            CountingInputStream compressed,
+                            CountingInputStream uncompressed) {
+            super(in);
+            mConnection = connection;
+            mCompressed = compressed;
+            mUncompressed = uncompressed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long received = mCompressed.mCount;
+            boolean drained = false;
+            try {
+                drained = drain();
+            } finally {
+                long unread = mCompressed.mCount - received;
+                super.close();
+                if (!drained) {
+                    mConnection.disconnect();
+                    sClosedConnections.incrementAndGet();
+                }
+                sCompressedBytes.addAndGet(mCompressed.mCount);
+                sUncompressedBytes.addAndGet(mUncompressed.mCount);
+                sDrainedBytes.addAndGet(unread);
+                Log.d(TAG, "Received " + mCompressed.mCount
+                      + " bytes for " + mUncompressed.mCount
+                      + " bytes of response body, "
+                      + (drained ? "drained " : "closed after ")
+                      + unread + " unread bytes");
+            }
+        }
+
+        /**
+         * Read the rest of the raw response body, unless pooling is
+         * off or more than MAX_DRAIN_BYTES of it are left.
+         *
+         * @return true if the body was read to the end
+         */
+        private boolean drain() throws IOException {
+            if (!sKeepAlive)
+                return false;
+            long contentLength = mConnection.getContentLength();
+            if (contentLength >= 0
+                && contentLength - mCompressed.mCount > MAX_DRAIN_BYTES)
+                return false;
+
+            byte[] buffer = new byte[1024];
+            long limit = mCompressed.mCount + MAX_DRAIN_BYTES;
+            while (mCompressed.read(buffer) != -1)
+                if (mCompressed.mCount > limit)
+                    return false;
+            return true;
+        }
+    }
+
+    /**
+     * Ensure this class is only used as a utility.
+     */
+    private WeatherHttpClient() {
+        throw new AssertionError();
+    }
+}
@@ -0,0 +1,66 @@
+package vandy.mooc.utils;
+
+import java.net.HttpURLConnection;
+
+import vandy.mooc.jsonweather.WeatherListSink;
+
+/**
+ * @class WeatherListResponse
+ *
+ * @brief The outcome of one group or forecast download from the
+ *        Weather Service, which is the sink its body is parsed into.
+ *        Each element of the body's list is parsed into a
+ *        WeatherResponse of its own and passed to onElement() as soon
+ *        as it is complete, and is not kept afterwards, so memory use
+ *        doesn't grow with the length of the list.  The fields
+ *        outside the list, such as the city of a forecast, fill in
+ *        this response's own WeatherData.
+ */
+public abstract class WeatherListResponse extends WeatherResponse
+                                          implements WeatherListSink {
+    /**
+     * Element being parsed, or null between elements.
+     */
+    private WeatherResponse mElement;
+
+    /**
+     * Number of elements parsed so far.
+     */
+    private int mElementCount;
+
+    public WeatherListResponse(int statusCode,
+                               String eTag,
+                               String lastModified,
+                               long freshnessMillis) {
+        super(statusCode, eTag, lastModified, freshnessMillis);
+    }
+
+    /**
+     * Called with each element of the list as soon as it has been
+     * parsed, on the thread doing the parsing.
+     */
+    protected abstract void onElement(WeatherResponse element);
+
+    public int getElementCount() {
+        return mElementCount;
+    }
+
+    @Override
+    public WeatherResponse beginElement() {
+        // Each element is fresh for as long as the response it came
+        // in, but the validators belong to the whole list.
+        mElement = new WeatherResponse(HttpURLConnection.HTTP_OK,
+                                       null,
+                                       null,
+                                       mFreshnessMillis);
+        return mElement;
+    }
+
+    @Override
+    public void endElement() {
+        WeatherResponse element = mElement;
+        mElement = null;
+        mElementCount++;
+        onElement(element);
+    }
+}
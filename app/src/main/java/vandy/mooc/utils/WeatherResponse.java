@@ -0,0 +1,160 @@
+package vandy.mooc.utils;
+
+import java.net.HttpURLConnection;
+
+import vandy.mooc.aidl.WeatherData;
+import vandy.mooc.jsonweather.WeatherSink;
+
+/**
+ * @class WeatherResponse
+ *
+ * @brief The outcome of one download from the Weather Service: the
+ *        HTTP status, the validators to store with the cached result,
+ *        how long the Weather Service said the result is fresh for
+ *        (-1 if it didn't) and, unless it is a 304 Not Modified, the
+ *        parsed body.  It is the sink the body is parsed into, which
+ *        fills in its WeatherData directly in a single pass.
+ */
+public class WeatherResponse implements WeatherSink {
+    /**
+     * The fields of the body, one bit each, and those a weather
+     * response must have.
+     */
+    private final static int ID = 1;
+    private final static int DT = 1 << 1;
+    private final static int NAME = 1 << 2;
+    private final static int SPEED = 1 << 3;
+    private final static int DEG = 1 << 4;
+    private final static int TEMP = 1 << 5;
+    private final static int HUMIDITY = 1 << 6;
+    private final static int SUNRISE = 1 << 7;
+    private final static int SUNSET = 1 << 8;
+    private final static int REQUIRED_FIELDS =
+        ID | DT | NAME | SPEED | DEG | TEMP | HUMIDITY | SUNRISE | SUNSET;
+
+    public final int mStatusCode;
+    public final String mETag;
+    public final String mLastModified;
+    public final long mFreshnessMillis;
+
+    /**
+     * The weather parsed from the body, or null for a 304 Not
+     * Modified.
+     */
+    public final WeatherData mWeatherData;
+
+    /**
+     * The "cod", city id and observation time ("dt", in seconds)
+     * parsed from the body.
+     */
+    private int mCod;
+    private long mId;
+    private long mDt;
+
+    /**
+     * The fields parsed from the body so far.
+     */
+    private int mFieldsSet;
+
+    public WeatherResponse(int statusCode,
+                           String eTag,
+                           String lastModified,
+                           long freshnessMillis) {
+        mStatusCode = statusCode;
+        mETag = eTag;
+        mLastModified = lastModified;
+        mFreshnessMillis = freshnessMillis;
+        mWeatherData = isNotModified() ? null : new WeatherData();
+    }
+
+    /**
+     * @return true if the Weather Service confirmed that the cached
+     * copy being revalidated is still current.
+     */
+    public boolean isNotModified() {
+        return mStatusCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    /**
+     * @return true if the Weather Service doesn't know the location.
+     */
+    public boolean isNotFound() {
+        return mStatusCode == HttpURLConnection.HTTP_NOT_FOUND
+            || mCod == HttpURLConnection.HTTP_NOT_FOUND;
+    }
+
+    /**
+     * @return true if the body supplied every field of the weather,
+     * so that it is fit to be cached and returned.
+     */
+    public boolean isComplete() {
+        return (mFieldsSet & REQUIRED_FIELDS) == REQUIRED_FIELDS;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public long getDt() {
+        return mDt;
+    }
+
+    @Override
+    public void setmCod(int cod) {
+        mCod = cod;
+    }
+
+    @Override
+    public void setmId(long id) {
+        mFieldsSet |= ID;
+        mId = id;
+    }
+
+    @Override
+    public void setmDt(long dt) {
+        mFieldsSet |= DT;
+        mDt = dt;
+    }
+
+    @Override
+    public void setmName(String name) {
+        mFieldsSet |= NAME;
+        mWeatherData.setName(name);
+    }
+
+    @Override
+    public void setmSpeed(double speed) {
+        mFieldsSet |= SPEED;
+        mWeatherData.setSpeed(speed);
+    }
+
+    @Override
+    public void setmDeg(double deg) {
+        mFieldsSet |= DEG;
+        mWeatherData.setDeg(deg);
+    }
+
+    @Override
+    public void setmTemp(double temp) {
+        mFieldsSet |= TEMP;
+        mWeatherData.setTemp(temp);
+    }
+
+    @Override
+    public void setmHumidity(long humidity) {
+        mFieldsSet |= HUMIDITY;
+        mWeatherData.setHumidity(humidity);
+    }
+
+    @Override
+    public void setmSunrise(long sunrise) {
+        mFieldsSet |= SUNRISE;
+        mWeatherData.setSunrise(sunrise);
+    }
+
+    @Override
+    public void setmSunset(long sunset) {
+        mFieldsSet |= SUNSET;
+        mWeatherData.setSunset(sunset);
+    }
+}
@@ -0,0 +1,65 @@
+package vandy.mooc.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * @class WeatherTransport
+ *
+ * @brief The way the weather services reach the Weather Service.
+ *        Utils makes every download through the transport it is
+ *        given, which is HttpWeatherTransport in production, so the
+ *        caching, coalescing and concurrency code above it can be
+ *        exercised and benchmarked against FakeWeatherTransport
+ *        without a network.
+ */
+public interface WeatherTransport {
+    /**
+     * The status and headers of a response.
+     */
+    interface Head {
+        /**
+         * @return the HTTP status of the response.
+         */
+        int getStatusCode() throws IOException;
+
+        /**
+         * @return the value of the response header @a name, or null
+         * if there is none.
+         */
+        String getHeader(String name);
+    }
+
+    /**
+     * One request and its response.
+     */
+    interface Exchange extends Head {
+
+        /**
+         * @return the decoded response body, which must be closed.
+         * It need not be read to the end: closing it lets the
+         * transport drain whatever was left unread and reuse the
+         * connection, or close the connection if that isn't worth
+         * it.
+         */
+        InputStream getBody() throws IOException;
+
+        /**
+         * Give up on the exchange after a failure, so its connection
+         * is never reused.
+         */
+        void abort();
+    }
+
+    /**
+     * Send a GET request for @a url with the extra @a headers, which
+     * must be answered before @a deadline.
+     *
+     * @return the exchange, whose response may still be in flight
+     * @throws IllegalStateException if the deadline has passed
+     */
+    Exchange get(String url,
+                 Map<String, String> headers,
+                 Deadline deadline) throws IOException;
+}
@@ -0,0 +1,75 @@
+package vandy.mooc.jsonweather;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+/**
+ * Tests that WeatherByteParser only counts a field as read, and so
+ * only stops early, once it has stored the field's value.
+ */
+public class WeatherByteParserTest {
+    private final static String FIELDS =
+        "\"id\":4644585,\"dt\":1445281200,\"name\":\"Nashville\","
+        + "\"wind\":{\"speed\":3.1,\"deg\":200},"
+        + "\"sys\":{\"sunrise\":1445255520,\"sunset\":1445296020},";
+
+    @Test
+    public void wrongTypeDoesNotCompleteResponse() throws IOException {
+        // Were the string counted as the humidity, the parser would
+        // stop before the number that follows it.
+        JsonWeather weather =
+            parse("{" + FIELDS
+                  + "\"main\":{\"temp\":291.5,\"humidity\":\"high\","
+                  + "\"humidity\":55}}");
+
+        assertEquals(55, weather.getmHumidity());
+    }
+
+    @Test
+    public void wrongTypeNameIsSkipped() throws IOException {
+        JsonWeather weather =
+            parse("{\"name\":5,"
+                  + FIELDS.replace("\"name\":\"Nashville\",", "")
+                  + "\"main\":{\"temp\":291.5,\"humidity\":55},"
+                  + "\"name\":\"Nashville\"}");
+
+        assertEquals("Nashville", weather.getmName());
+    }
+
+    @Test
+    public void stopsOnceEveryFieldIsRead() throws IOException {
+        byte[] body =
+            bytes("{" + FIELDS
+                  + "\"main\":{\"temp\":291.5,\"humidity\":55},"
+                  + "\"cod\":200}");
+        WeatherByteParser parser = new WeatherByteParser();
+        JsonWeather weather = new JsonWeather();
+        parser.begin(weather);
+
+        int consumed = parser.feed(body, 0, body.length);
+
+        assertTrue(parser.isDone());
+        assertTrue(consumed < body.length);
+        assertEquals(55, weather.getmHumidity());
+    }
+
+    private static JsonWeather parse(String body) throws IOException {
+        byte[] bytes = bytes(body);
+        WeatherByteParser parser = new WeatherByteParser();
+        JsonWeather weather = new JsonWeather();
+        parser.begin(weather);
+
+        parser.feed(bytes, 0, bytes.length);
+        assertTrue(parser.isDone());
+        return weather;
+    }
+
+    private static byte[] bytes(String body) {
+        return body.getBytes(Charset.forName("UTF-8"));
+    }
+}
@@ -0,0 +1,66 @@
+package vandy.mooc.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests that AdmissionController tells a caller that ran out of time
+ * apart from one that found the service busy.
+ */
+public class AdmissionControllerTest {
+    private final static String BUSY_MESSAGE =
+        "Weather service is busy, please try again";
+
+    @Test
+    public void expiredDeadlineIsNotReportedAsBusy() {
+        AdmissionController admission = new AdmissionController(1, 1, 10000);
+        admission.acquire();
+
+        assertEquals(Deadline.EXCEEDED_MESSAGE,
+                     rejection(admission, Deadline.after(50)));
+    }
+
+    @Test
+    public void alreadyExpiredDeadlineIsNotReportedAsBusy() {
+        AdmissionController admission = new AdmissionController(1, 1, 10000);
+        admission.acquire();
+
+        Deadline deadline = Deadline.after(1);
+        while (!deadline.isExpired())
+            continue;
+        assertEquals(Deadline.EXCEEDED_MESSAGE, rejection(admission, deadline));
+    }
+
+    @Test
+    public void queueTimeoutIsReportedAsBusy() {
+        AdmissionController admission = new AdmissionController(1, 1, 50);
+        admission.acquire();
+
+        assertEquals(BUSY_MESSAGE, rejection(admission, Deadline.after(10000)));
+    }
+
+    @Test
+    public void fullQueueIsReportedAsBusy() {
+        AdmissionController admission = new AdmissionController(1, 0, 10000);
+        admission.acquire();
+
+        assertEquals(BUSY_MESSAGE, rejection(admission, Deadline.after(10000)));
+    }
+
+    /**
+     * @return the message @a admission rejects a caller with @a
+     * deadline with
+     */
+    private static String rejection(AdmissionController admission,
+                                    Deadline deadline) {
+        try {
+            admission.acquire(deadline);
+        } catch (IllegalStateException e) {
+            return e.getMessage();
+        }
+        fail("Admitted a caller with no permit free");
+        return null;
+    }
+}
@@ -0,0 +1,123 @@
+package vandy.mooc.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests Hedger with attempts whose latency is decided by the test
+ * rather than the clock: the first attempt of every call hangs until
+ * the Hedger has decided whether to hedge it, and a hedge answers at
+ * once.  A hedged call must return the hedge's result, and a call the
+ * RetryBudget can't pay a hedge for must wait for its first attempt.
+ */
+public class HedgerTest {
+    private final static String FIRST = "first";
+    private final static String HEDGE = "hedge";
+
+    private ExecutorService mAttempts;
+
+    /**
+     * The call being made, which the budget reports its decision to.
+     */
+    private volatile Call mCall;
+
+    @Before
+    public void setUp() {
+        mAttempts = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        mAttempts.shutdownNow();
+    }
+
+    @Test
+    public void hedgeAnswersForSlowAttempt() throws Exception {
+        Hedger hedger = newHedger(1, 10);
+
+        assertEquals(HEDGE, call(hedger));
+        assertEquals(1, hedger.getHedgeCount());
+        assertEquals(2, mCall.mAttempts.get());
+    }
+
+    @Test
+    public void emptyBudgetWaitsForFirstAttempt() throws Exception {
+        Hedger hedger = newHedger(0, 0);
+
+        assertEquals(FIRST, call(hedger));
+        assertEquals(0, hedger.getHedgeCount());
+        assertEquals(1, mCall.mAttempts.get());
+    }
+
+    @Test
+    public void hedgesStayWithinBudget() throws Exception {
+        // A full token to start with, and half a token per call: the
+        // first call is hedged, and then every other one.
+        Hedger hedger = newHedger(0.5, 1);
+
+        StringBuilder winners = new StringBuilder();
+        for (int i = 0; i < 6; i++)
+            winners.append(call(hedger).charAt(0));
+
+        assertEquals("hfhfhf", winners.toString());
+        assertEquals(3, hedger.getHedgeCount());
+    }
+
+    /**
+     * @return a Hedger that hedges after 10 ms, paid for by a budget
+     * of @a ratio hedges per call and at most @a maxTokens saved up
+     */
+    private Hedger newHedger(double ratio, double maxTokens) {
+        RetryBudget budget = new RetryBudget(ratio, maxTokens) {
+                @Override
+                public synchronized boolean tryWithdraw() {
+                    boolean hedge = super.tryWithdraw();
+                    mCall.decided(hedge);
+                    return hedge;
+                }
+            };
+        return new Hedger(mAttempts, new LatencyTracker(16), budget, 50, 10);
+    }
+
+    private String call(Hedger hedger) throws Exception {
+        mCall = new Call();
+        return hedger.call(mCall, Deadline.NONE);
+    }
+
+    /**
+     * A call whose first attempt hangs until the Hedger decides
+     * whether to hedge it, and then forever if it did, while a hedge
+     * answers at once.
+     */
+    private static class Call implements Callable<String> {
+        final AtomicInteger mAttempts = new AtomicInteger();
+        final CountDownLatch mDecided = new CountDownLatch(1);
+        volatile boolean mHedged;
+
+        void decided(boolean hedged) {
+            mHedged = hedged;
+            mDecided.countDown();
+        }
+
+        @Override
+        public String call() throws Exception {
+            if (mAttempts.incrementAndGet() > 1)
+                return HEDGE;
+
+            mDecided.await();
+            if (mHedged)
+                // Cancelled by the Hedger once the hedge has won.
+                new CountDownLatch(1).await();
+            return FIRST;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package vandy.mooc.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests NioWeatherEngine against a loopback server that writes raw
+ * HTTP responses: each way of framing a body, empty bodies, and
+ * keep-alive connections the server closes.
+ */
+public class NioWeatherEngineTest {
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final static String WEATHER =
+        "{\"coord\":{\"lon\":-86.78,\"lat\":36.17},"
+        + "\"weather\":[{\"id\":800,\"main\":\"Clear\"}],"
+        + "\"main\":{\"temp\":291.5,\"pressure\":1016,\"humidity\":55},"
+        + "\"wind\":{\"speed\":3.1,\"deg\":200},"
+        + "\"dt\":1445281200,"
+        + "\"sys\":{\"sunrise\":1445255520,\"sunset\":1445296020},"
+        + "\"id\":4644585,\"name\":\"Nashville\",\"cod\":200}";
+
+    private final static String FIXED =
+        "HTTP/1.1 200 OK\r\n"
+        + "Content-Length: " + WEATHER.length() + "\r\n"
+        + "\r\n"
+        + WEATHER;
+
+    private final static NioWeatherEngine.Handler<WeatherResponse> HANDLER =
+        new NioWeatherEngine.Handler<WeatherResponse>() {
+            @Override
+            public WeatherResponse onHead(WeatherTransport.Head head)
+                throws IOException {
+                return new WeatherResponse(head.getStatusCode(), null, null, -1);
+            }
+        };
+
+    private final NioWeatherEngine mEngine = new NioWeatherEngine(2, 60000, 5000);
+
+    private Server mServer;
+
+    @After
+    public void tearDown() throws IOException {
+        mEngine.shutdown();
+        if (mServer != null)
+            mServer.close();
+    }
+
+    @Test(timeout = 10000)
+    public void fixedLengthBodyOnKeptAliveConnection() throws Exception {
+        mServer = new Server(new Script() {
+                @Override
+                public void serve(Socket socket, int connection)
+                    throws IOException {
+                    while (readRequest(socket))
+                        write(socket, FIXED);
+                }
+            });
+
+        assertEquals("Nashville", fetch().mWeatherData.getName());
+        assertTrue(fetch().isComplete());
+        assertEquals(1, mEngine.getReusedConnectionCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void chunkedBody() throws Exception {
+        mServer = new Server(new Script() {
+                @Override
+                public void serve(Socket socket, int connection)
+                    throws IOException {
+                    readRequest(socket);
+                    StringBuilder response = new StringBuilder
+                        ("HTTP/1.1 200 OK\r\n"
+                         + "Transfer-Encoding: chunked\r\n"
+                         + "\r\n");
+                    for (int i = 0; i < WEATHER.length(); i += 40) {
+                        String chunk =
+                            WEATHER.substring(i, Math.min(i + 40, WEATHER.length()));
+                        response.append(Integer.toHexString(chunk.length()))
+                            .append("\r\n").append(chunk).append("\r\n");
+                    }
+                    write(socket, response.append("0\r\n\r\n").toString());
+                }
+            });
+
+        WeatherResponse response = fetch();
+        assertTrue(response.isComplete());
+        assertEquals(55, response.mWeatherData.getHumidity());
+    }
+
+    @Test(timeout = 10000)
+    public void closeDelimitedBody() throws Exception {
+        mServer = new Server(new Script() {
+                @Override
+                public void serve(Socket socket, int connection)
+                    throws IOException {
+                    readRequest(socket);
+                    write(socket, "HTTP/1.0 200 OK\r\n\r\n" + WEATHER);
+                    socket.close();
+                }
+            });
+
+        assertTrue(fetch().isComplete());
+        assertTrue(fetch().isComplete());
+        assertEquals(0, mEngine.getReusedConnectionCount());
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void emptyNotFoundBodyIsDelivered() throws Exception {
+        mServer = new Server(new Script() {
+                @Override
+                public void serve(Socket socket, int connection)
+                    throws IOException {
+                    readRequest(socket);
+                    write(socket,
+                          "HTTP/1.1 404 Not Found\r\n"
+                          + "Content-Length: 0\r\n"
+                          + "\r\n");
+                }
+            });
+
+        WeatherResponse response = fetch();
+        assertTrue(response.isNotFound());
+        assertFalse(response.isComplete());
+    }
+
+    @Test(timeout = 10000)
+    public void emptyNotModifiedBodyIsDelivered() throws Exception {
+        mServer = new Server(new Script() {
+                @Override
+                public void serve(Socket socket, int connection)
+                    throws IOException {
+                    readRequest(socket);
+                    write(socket, "HTTP/1.1 304 Not Modified\r\n\r\n");
+                }
+            });
+
+        assertTrue(fetch().isNotModified());
+    }
+
+    @Test(timeout = 10000)
+    public void emptyOkBodyFails() throws Exception {
+        mServer = new Server(new Script() {
+                @Override
+                public void serve(Socket socket, int connection)
+                    throws IOException {
+                    readRequest(socket);
+                    write(socket,
+                          "HTTP/1.1 200 OK\r\n"
+                          + "Transfer-Encoding: chunked\r\n"
+                          + "\r\n"
+                          + "0\r\n\r\n");
+                }
+            });
+
+        try {
+            fetch();
+            fail("An empty 200 should fail");
+        } catch (IOException e) {
+            assertEquals("Weather Service answered 200 with an empty body",
+                         e.getMessage());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void staleKeptAliveConnectionIsRetried() throws Exception {
+        mServer = new Server(new Script() {
+                @Override
+                public void serve(Socket socket, int connection)
+                    throws IOException {
+                    readRequest(socket);
+                    write(socket, FIXED);
+                    if (connection == 0) {
+                        // Take the second request, then close as if
+                        // the connection had been idle too long.
+                        readRequest(socket);
+                        socket.close();
+                    }
+                }
+            });
+
+        assertTrue(fetch().isComplete());
+        assertTrue(fetch().isComplete());
+        assertEquals(1, mEngine.getReusedConnectionCount());
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test(timeout = 10000)
+    public void idleConnectionClosedByServerIsDropped() throws Exception {
+        final CountDownLatch closed = new CountDownLatch(1);
+        mServer = new Server(new Script() {
+                @Override
+                public void serve(Socket socket, int connection)
+                    throws IOException {
+                    readRequest(socket);
+                    write(socket, FIXED);
+                    if (connection == 0) {
+                        // Close this end, and wait for the engine to
+                        // close its end in turn.
+                        socket.shutdownOutput();
+                        while (socket.getInputStream().read() != -1)
+                            continue;
+                        closed.countDown();
+                    }
+                }
+            });
+
+        assertTrue(fetch().isComplete());
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertTrue(fetch().isComplete());
+        assertEquals(0, mEngine.getReusedConnectionCount());
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    private WeatherResponse fetch() throws IOException {
+        return mEngine.fetchAndWait
+            ("http://127.0.0.1:" + mServer.getPort() + "/weather?q=nashville",
+             Collections.<String, String>emptyMap(),
+             Deadline.after(5000),
+             HANDLER);
+    }
+
+    /**
+     * Read the head of a request from @a socket.
+     *
+     * @return false if the connection was closed first
+     */
+    private static boolean readRequest(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        int matched = 0;
+        for (int b; (b = in.read()) != -1;) {
+            if (b == (matched % 2 == 0 ? '\r' : '\n'))
+                matched++;
+            else
+                matched = b == '\r' ? 1 : 0;
+            if (matched == 4)
+                return true;
+        }
+        return false;
+    }
+
+    private static void write(Socket socket, String response)
+        throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(response.getBytes(UTF_8));
+        out.flush();
+    }
+
+    /**
+     * What the server does with each connection, numbered from 0.
+     */
+    private interface Script {
+        void serve(Socket socket, int connection) throws IOException;
+    }
+
+    /**
+     * A loopback server that runs a Script on each connection it
+     * accepts, each on its own thread.
+     */
+    private static class Server implements Runnable {
+        private final ServerSocket mServerSocket;
+        private final Script mScript;
+        private final AtomicInteger mConnectionCount = new AtomicInteger();
+
+        Server(Script script) throws IOException {
+            mServerSocket =
+                new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            mScript = script;
+            Thread thread = new Thread(this, "NioWeatherEngineTest");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        int getConnectionCount() {
+            return mConnectionCount.get();
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    final Socket socket = mServerSocket.accept();
+                    final int connection = mConnectionCount.getAndIncrement();
+                    Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    mScript.serve(socket, connection);
+                                } catch (IOException e) {
+                                    // The engine closed the connection.
+                                }
+                            }
+                        });
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                // The server was closed.
+            }
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+}
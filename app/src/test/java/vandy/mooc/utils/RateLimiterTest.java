@@ -0,0 +1,77 @@
+package vandy.mooc.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that a queueing RateLimiter never waits longer than its
+ * maximum wait or the caller's deadline allow.
+ */
+public class RateLimiterTest {
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("ratelimiter", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDirectory.listFiles())
+            file.delete();
+        mDirectory.delete();
+    }
+
+    @Test
+    public void zeroMaxWaitRejectsAtOnce() {
+        RateLimiter limiter = new RateLimiter(mDirectory, 1, 1, true, 0);
+        limiter.acquire(Deadline.NONE);
+
+        assertRejectedQuickly(limiter, Deadline.NONE);
+        assertEquals(1, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void expiredDeadlineRejectsAtOnce() {
+        RateLimiter limiter = new RateLimiter(mDirectory, 1, 1, true, 60000);
+        limiter.acquire(Deadline.NONE);
+
+        Deadline deadline = Deadline.after(1);
+        while (!deadline.isExpired())
+            continue;
+        assertEquals(Deadline.EXCEEDED_MESSAGE,
+                     assertRejectedQuickly(limiter, deadline));
+    }
+
+    @Test
+    public void shortDeadlineRejectsAtOnce() {
+        RateLimiter limiter = new RateLimiter(mDirectory, 1, 1, true, 60000);
+        limiter.acquire(Deadline.NONE);
+
+        // The next token is a minute away, well past the deadline.
+        assertRejectedQuickly(limiter, Deadline.after(100));
+        assertEquals(1, limiter.getRejectedCount());
+    }
+
+    private static String assertRejectedQuickly(RateLimiter limiter,
+                                                Deadline deadline) {
+        long start = System.nanoTime();
+        try {
+            limiter.acquire(deadline);
+            fail("acquire() should have been rejected");
+            return null;
+        } catch (IllegalStateException e) {
+            assertTrue((System.nanoTime() - start) / 1000000L < 1000);
+            return e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package vandy.mooc.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that WeatherCache keys don't depend on the default locale.
+ */
+public class WeatherCacheTest {
+    private Locale mDefault;
+
+    @Before
+    public void setUp() {
+        mDefault = Locale.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        Locale.setDefault(mDefault);
+    }
+
+    @Test
+    public void normalizeIgnoresTurkishCasing() {
+        Locale.setDefault(new Locale("tr", "TR"));
+        assertEquals("illinois", WeatherCache.normalize(" ILLINOIS "));
+    }
+}
@@ -0,0 +1,127 @@
+package vandy.mooc.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that WeatherHttpClient leaves its connections in the
+ * platform's pool, so sequential requests to one host share a single
+ * keep-alive connection.
+ */
+public class WeatherHttpClientTest {
+    private final static int REQUESTS = 10;
+
+    private final static byte[] BODY =
+        "{\"name\":\"Nashville\",\"cod\":200}".getBytes(Charset.forName("UTF-8"));
+
+    private ServerSocket mServer;
+    private Thread mServerThread;
+    private final AtomicInteger mAccepts = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        WeatherHttpClient.configurePool(WeatherHttpClient.DEFAULT_MAX_IDLE_CONNECTIONS,
+                                        WeatherHttpClient.DEFAULT_KEEP_ALIVE_MILLIS);
+        mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mServerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = mServer.accept();
+                        mAccepts.incrementAndGet();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }).start();
+                    }
+                } catch (IOException e) {
+                    // The server socket was closed by tearDown().
+                }
+            }
+        });
+        mServerThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+        mServerThread.join();
+    }
+
+    /**
+     * Answer every request on @a socket with a keep-alive response
+     * until the client closes it.
+     */
+    private static void serve(Socket socket) {
+        try {
+            BufferedReader in =
+                new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = in.readLine()) != null) {
+                if (requestLine.isEmpty())
+                    continue;
+                String header;
+                while ((header = in.readLine()) != null && !header.isEmpty())
+                    continue;
+
+                String head = "HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: application/json\r\n"
+                    + "Content-Length: " + BODY.length + "\r\n"
+                    + "Connection: keep-alive\r\n"
+                    + "\r\n";
+                out.write(head.getBytes("US-ASCII"));
+                out.write(BODY);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client dropped the connection.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing more to do.
+            }
+        }
+    }
+
+    @Test
+    public void sequentialRequestsReuseOneConnection() throws IOException {
+        URL url = new URL("http://127.0.0.1:" + mServer.getLocalPort()
+                          + "/data/2.5/weather?q=Nashville");
+        for (int i = 0; i < REQUESTS; i++) {
+            HttpURLConnection connection = WeatherHttpClient.open(url);
+            InputStream in = WeatherHttpClient.getInputStream(connection);
+            try {
+                // Read only part of the body, as the parsers do once
+                // they have every field they need; close() must drain
+                // the rest for the connection to be reused.
+                assertEquals('{', in.read());
+            } finally {
+                in.close();
+            }
+            assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        }
+
+        assertEquals(1, mAccepts.get());
+    }
+}
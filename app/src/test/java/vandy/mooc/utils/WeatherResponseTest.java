@@ -0,0 +1,76 @@
+package vandy.mooc.utils;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import vandy.mooc.jsonweather.WeatherByteParser;
+
+/**
+ * Tests that WeatherResponse tells an unknown location and an
+ * incomplete body apart from weather that can be cached.
+ */
+public class WeatherResponseTest {
+    private final static String WEATHER =
+        "{\"coord\":{\"lon\":-86.78,\"lat\":36.17},"
+        + "\"weather\":[{\"id\":800,\"main\":\"Clear\"}],"
+        + "\"main\":{\"temp\":291.5,\"pressure\":1016,\"humidity\":55},"
+        + "\"wind\":{\"speed\":3.1,\"deg\":200},"
+        + "\"dt\":1445281200,"
+        + "\"sys\":{\"sunrise\":1445255520,\"sunset\":1445296020},"
+        + "\"id\":4644585,\"name\":\"Nashville\",\"cod\":200}";
+
+    @Test
+    public void notFoundStatusIsNotFound() {
+        WeatherResponse response = new WeatherResponse(404, null, null, -1);
+
+        assertTrue(response.isNotFound());
+        assertFalse(response.isComplete());
+    }
+
+    @Test
+    public void notFoundCodIsNotFound() throws IOException {
+        WeatherResponse response =
+            parse("{\"cod\":\"404\",\"message\":\"city not found\"}");
+
+        assertTrue(response.isNotFound());
+        assertFalse(response.isComplete());
+    }
+
+    @Test
+    public void emptyObjectIsIncomplete() throws IOException {
+        WeatherResponse response = parse("{}");
+
+        assertFalse(response.isNotFound());
+        assertFalse(response.isComplete());
+    }
+
+    @Test
+    public void missingFieldIsIncomplete() throws IOException {
+        WeatherResponse response =
+            parse(WEATHER.replace("\"humidity\":55", "\"sea_level\":1020"));
+
+        assertFalse(response.isNotFound());
+        assertFalse(response.isComplete());
+    }
+
+    @Test
+    public void fullBodyIsComplete() throws IOException {
+        WeatherResponse response = parse(WEATHER);
+
+        assertFalse(response.isNotFound());
+        assertTrue(response.isComplete());
+    }
+
+    private static WeatherResponse parse(String body) throws IOException {
+        byte[] bytes = body.getBytes(Charset.forName("UTF-8"));
+        return new WeatherByteParser().parse
+            (new ByteArrayInputStream(bytes),
+             new WeatherResponse(200, null, null, -1));
+    }
+}